@@ -0,0 +1,104 @@
+import lkhj.ArrayTour;
+import lkhj.ArrayTwoLevelTree;
+import lkhj.DistanceFunction;
+import lkhj.MappedInstanceReader;
+import lkhj.ThreeLevelTree;
+import lkhj.Tour;
+import lkhj.TwoLevelTree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * compares the tour structures on the flips of one instance, the instance file is the only argument
+ */
+public class BenchmarkTours {
+    //keeps the replayed queries alive
+    static int sink;
+
+    /**
+     * record the flips of a 2-opt descent over the 8 nearest neighbours from a random tour,
+     * then replay them with the successor and between queries of the descent on every tour structure
+     */
+    public static void main(String[] args) throws IOException {
+        String file = args.length > 0 ? args[0] : "instances/xpr2308.tsp";
+        DistanceFunction distance = MappedInstanceReader.ReadTSPInstance(file);
+        int n = distance.getDimension();
+        Random random = new Random(1);
+        int[] start = new int[n];
+        for (int i = 0; i < n; ++i) {
+            start[i] = i;
+        }
+        for (int i = n - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int temp = start[i];
+            start[i] = start[j];
+            start[j] = temp;
+        }
+
+        final int degree = 8;
+        int[][] neighbours = new int[n][];
+        for (int i = 0; i < n; ++i) {
+            final int city = i;
+            Integer[] others = new Integer[n - 1];
+            for (int j = 0, k = 0; j < n; ++j) {
+                if (j != i) others[k++] = j;
+            }
+            Arrays.sort(others, (x, y) -> Double.compare(distance.getCost(city, x), distance.getCost(city, y)));
+            neighbours[i] = new int[degree];
+            for (int k = 0; k < degree; ++k) {
+                neighbours[i][k] = others[k];
+            }
+        }
+
+        Tour reference = new ArrayTour(start);
+        ArrayList<int[]> flips = new ArrayList<>();
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int b = 0; b < n; ++b) {
+                int a = reference.next(b);
+                for (int c : neighbours[b]) {
+                    int d = reference.next(c);
+                    if (c == a || d == b) continue;
+                    if (distance.getCost(a, b) + distance.getCost(c, d)
+                            - distance.getCost(b, c) - distance.getCost(a, d) > 1.0e-9) {
+                        reference.flip(a, b, c, d);
+                        flips.add(new int[]{a, b, c, d});
+                        improved = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        String[] names = {"TwoLevelTree", "ArrayTwoLevelTree", "ThreeLevelTree", "ArrayTour"};
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        for (int round = 0; round < 20; ++round) {
+            for (int type = 0; type < names.length; ++type) {
+                Tour tour = type == 0 ? new TwoLevelTree(start)
+                        : type == 1 ? new ArrayTwoLevelTree(start)
+                        : type == 2 ? new ThreeLevelTree(start) : new ArrayTour(start);
+                long time = System.nanoTime();
+                for (int[] flip : flips) {
+                    int a = flip[0], b = flip[1], c = flip[2], d = flip[3];
+                    for (int e : neighbours[b]) {
+                        sink += tour.next(e) + tour.prev(e);
+                        if (tour.between(a, e, c)) ++sink;
+                    }
+                    if (a == tour.next(b)) {
+                        tour.flip(a, b, c, d);
+                    } else {
+                        tour.flip(b, a, d, c);
+                    }
+                }
+                best[type] = Math.min(best[type], System.nanoTime() - time);
+            }
+        }
+        for (int type = 0; type < names.length; ++type) {
+            System.out.println(names[type] + ": " + flips.size() + " flips in " + best[type] / 1000 + " us");
+        }
+    }
+}
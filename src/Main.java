@@ -1,6 +1,7 @@
-import lkhj.InstanceReader;
+import lkhj.DistanceFunction;
 import lkhj.LKHJ;
-import lkhj.TwoLevelTree;
+import lkhj.MappedInstanceReader;
+import lkhj.PackedTriangularMatrix;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
@@ -11,22 +12,19 @@ import java.util.Random;
 
 public class Main {
 
-    static double getCost(double[][] mat, int i, int j){
-        return i > j ? mat[i][j] : mat[j][i];
-    }
-    static private void writeInstance(double[][] mat) throws IOException {
+    static private void writeInstance(DistanceFunction mat) throws IOException {
         BufferedWriter bw = new BufferedWriter(new FileWriter("instance.tsp"));
 
         bw.write("NAME : tmpFile\n" +
                 "TYPE : TSP\n" +
-                "DIMENSION : " + mat.length + "\n" +
+                "DIMENSION : " + mat.getDimension() + "\n" +
                 "EDGE_WEIGHT_TYPE : EXPLICIT\n" +
                 "EDGE_WEIGHT_FORMAT : FULL_MATRIX\n" +
                 "EDGE_WEIGHT_SECTION\n");
 
-        for (int i=0; i < mat.length; ++i){
-            for (int j=0; j < mat.length; ++j){
-                bw.write(String.valueOf((int)getCost(mat, i, j)) + " ");
+        for (int i=0; i < mat.getDimension(); ++i){
+            for (int j=0; j < mat.getDimension(); ++j){
+                bw.write(String.valueOf((int)mat.getCost(i, j)) + " ");
 
             }
             bw.write("\n");
@@ -36,25 +34,15 @@ public class Main {
         bw.close();
     }
 
-    static void setMatrix(double[][] mat, int i, int j, double value){
-        if (i > j) {
-            mat[i][j] = value;
-        }else{
-            mat[j][i] = value;
-        }
-    }
-
-    static double[][] genRandomMatrix(int dimension, double min, double max, Random random){
-        double[][] matrix = new double[dimension][];
+    static PackedTriangularMatrix genRandomMatrix(int dimension, double min, double max, Random random){
+        PackedTriangularMatrix matrix = new PackedTriangularMatrix(dimension,
+                PackedTriangularMatrix.WeightType.forRange(min, max, true));
 
         for (int i=0; i<dimension; ++i){
-            matrix[i] = new double[i+1];
-        }
-        for (int i=0; i<matrix.length; ++i){
-            for (int j=0; j<matrix[i].length; ++j){
+            for (int j=0; j<i; ++j){
                 //double temp = min + (max - min) * random.nextDouble();
                 double temp = min + random.nextInt((int)(max - min));
-                setMatrix(matrix, i, j, temp);//matrix[i][j] = matrix[j][i] = temp;
+                matrix.setCost(i, j, temp);
             }
         }
         return matrix;
@@ -64,8 +52,8 @@ public class Main {
         Random random = new Random(1);
 
         int num = 1000;
-//        double[][] mat = genOptTandomMatrix(num, 2, 100, random);
-        double[][] mat = genIncreasingMatrix(10);
+//        PackedTriangularMatrix mat = genOptTandomMatrix(num, 2, 100, random);
+        PackedTriangularMatrix mat = genIncreasingMatrix(10);
         writeInstance(mat);
         LKHJ solver = new LKHJ(mat, new Random());
         //solver.twoOptSolve();
@@ -77,13 +65,13 @@ public class Main {
     }
 
     static void testFileInstance() throws IOException {
-        LKHJ solver = new LKHJ(InstanceReader.ReadTSPInstance(
+        LKHJ solver = new LKHJ(MappedInstanceReader.ReadTSPInstance(
                 "instances/xqg237.tsp"), new Random());
         solver.solve();
     }
 
-    static double[][] genOptTandomMatrix(int dimension,double min, double max, Random random){
-        double[][] matrix = genRandomMatrix(dimension, min + 1, max, random);
+    static PackedTriangularMatrix genOptTandomMatrix(int dimension,double min, double max, Random random){
+        PackedTriangularMatrix matrix = genRandomMatrix(dimension, min + 1, max, random);
 
         ArrayList<Integer> optTour = new ArrayList<>(dimension);
         for (int i=0; i<dimension; ++i){
@@ -93,40 +81,40 @@ public class Main {
         for (int i=0; i<optTour.size() - 1; ++i){
             int a = optTour.get(i);
             int b = optTour.get(i+1);
-            setMatrix(matrix, a, b, 1);//matrix[a][b] = matrix[b][a] = 1;
+            matrix.setCost(a, b, 1);
             if (random.nextInt(2) == 0){
                 int c = random.nextInt(dimension);
                 if (c != a && c != b){
-                    setMatrix(matrix, a, c, 1);//matrix[a][c] = matrix[c][a] = 1;
+                    matrix.setCost(a, c, 1);
                 }
             }
         }
 
-        setMatrix(matrix, optTour.get(optTour.size()-1), optTour.get(0), 1);
+        matrix.setCost(optTour.get(optTour.size()-1), optTour.get(0), 1);
 //        matrix[optTour.get(optTour.size() - 1)][optTour.get(0)]
 //                = matrix[optTour.get(0)][optTour.get(optTour.size() - 1)] = 1;
         return matrix;
     }
 
-    static private double[][] genIncreasingMatrix(int num){
-        double[][] matrix = new double[num][num];
+    static private PackedTriangularMatrix genIncreasingMatrix(int num){
+        PackedTriangularMatrix matrix = new PackedTriangularMatrix(num, PackedTriangularMatrix.WeightType.INT);
 
         int value = 1;
-        for (int i=0; i<matrix.length; ++i){
-            for (int j = i+1; j<matrix[i].length; ++j){
-                matrix[i][j] = matrix[j][i] = value;
+        for (int i=0; i<num; ++i){
+            for (int j = i+1; j<num; ++j){
+                matrix.setCost(i, j, value);
                 ++value;
             }
         }
         return matrix;
     }
 
-    static private double[][] genDecreasingMatrix(int num){
-        double[][] matrix = new double[num][num];
+    static private PackedTriangularMatrix genDecreasingMatrix(int num){
+        PackedTriangularMatrix matrix = new PackedTriangularMatrix(num, PackedTriangularMatrix.WeightType.INT);
 
-        for (int i=0; i<matrix.length; ++i){
-            for (int j=i+1; j<matrix[i].length; ++j){
-                matrix[i][j] = matrix[j][i] = matrix.length -j;
+        for (int i=0; i<num; ++i){
+            for (int j=i+1; j<num; ++j){
+                matrix.setCost(i, j, num -j);
             }
         }
         return matrix;
@@ -0,0 +1,110 @@
+package lkhj;
+
+import java.util.Arrays;
+
+/**
+ * Alpha-nearness candidates as in LKH.
+ * alpha(i, j) is the increase of the 1-tree length when the 1-tree is forced to contain edge (i, j),
+ * i.e. c(i, j) minus the longest edge on the tree path from i to j (costs transformed by pi).
+ * Computed in O(n^2) time and O(n) space with a topological sweep for every i.
+ */
+class AlphaNearness {
+
+    private final DistanceFunction distance;
+    private final double[] pi;
+    private final int dimension;
+    private final int[] fathers;
+    private final int[] order;
+    private final int specialNode;
+    private final double specialBeta;
+
+    AlphaNearness(DistanceFunction distance, double[] pi, OneTree oneTree) {
+        this.distance = distance;
+        this.pi = pi;
+        dimension = distance.getDimension();
+        fathers = new int[dimension];
+        for (int i = 0; i < dimension; ++i) {
+            fathers[i] = oneTree.getFather(i);
+        }
+        order = oneTree.getTopologicalOrder();
+
+        //the special leaf may swap its longer 1-tree edge for any other edge
+        specialNode = oneTree.getSpecialConnection(0);
+        specialBeta = fathers[specialNode] < 0 ?
+                cost(specialNode, oneTree.getSpecialConnection(1))
+                : Math.max(cost(specialNode, fathers[specialNode]),
+                cost(specialNode, oneTree.getSpecialConnection(1)));
+    }
+
+    private double cost(int i, int j) {
+        return distance.getCost(i, j) + pi[i] + pi[j];
+    }
+
+    /**
+     * @param count number of candidates per city
+     * @return the candidates of each city with a stride of min(count, n - 1), smallest alpha first
+     */
+    int[] generate(int count) {
+        int stride = Math.min(count, dimension - 1);
+        int[] table = new int[dimension * stride];
+        double[] beta = new double[dimension];
+        int[] mark = new int[dimension];
+        Arrays.fill(mark, -1);
+        double[] bestAlpha = new double[stride];
+        double[] bestCost = new double[stride];
+
+        for (int i = 0; i < dimension; ++i) {
+            //beta of the nodes on the path from i to the root
+            beta[i] = -Double.MAX_VALUE;
+            mark[i] = i;
+            for (int u = i; fathers[u] >= 0; u = fathers[u]) {
+                int f = fathers[u];
+                beta[f] = Math.max(beta[u], cost(u, f));
+                mark[f] = i;
+            }
+
+            int found = 0;
+            for (int j : order) {
+                if (j == i) continue;
+                if (mark[j] != i) {
+                    beta[j] = Math.max(beta[fathers[j]], cost(j, fathers[j]));
+                }
+                double c = cost(i, j);
+                double alpha = c - beta[j];
+                if (i == specialNode || j == specialNode) {
+                    alpha = Math.min(alpha, Math.max(0, c - specialBeta));
+                }
+                found = insert(table, i * stride, found, stride, bestAlpha, bestCost, j, alpha, c);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * keep the best candidates sorted by alpha, then cost, then index
+     *
+     * @return new number of candidates kept
+     */
+    static private int insert(int[] table, int offset, int found, int stride,
+                              double[] bestAlpha, double[] bestCost, int j, double alpha, double c) {
+        if (found == stride && !better(alpha, c, j, bestAlpha[stride - 1], bestCost[stride - 1],
+                table[offset + stride - 1])) {
+            return found;
+        }
+        int k = found < stride ? found : stride - 1;
+        while (k > 0 && better(alpha, c, j, bestAlpha[k - 1], bestCost[k - 1], table[offset + k - 1])) {
+            bestAlpha[k] = bestAlpha[k - 1];
+            bestCost[k] = bestCost[k - 1];
+            table[offset + k] = table[offset + k - 1];
+            --k;
+        }
+        bestAlpha[k] = alpha;
+        bestCost[k] = c;
+        table[offset + k] = j;
+        return found < stride ? found + 1 : found;
+    }
+
+    static private boolean better(double alpha, double c, int j, double otherAlpha, double otherC, int other) {
+        return alpha < otherAlpha || alpha == otherAlpha && (c < otherC || c == otherC && j < other);
+    }
+}
@@ -0,0 +1,201 @@
+package lkhj;
+
+import java.util.ArrayList;
+
+/**
+ * Tour kept as a plain array of the cities and the position of every city.
+ * next, prev and between are O(1) and a flip reverses the shorter of its two paths in O(n),
+ * which beats the two level tree on small instances.
+ */
+public class ArrayTour implements Tour {
+
+    private int[] tour;
+    private final int[] pos;
+    //target of the exchanges, swapped with tour afterwards
+    private int[] buffer;
+
+    public ArrayTour(int[] tour) {
+        this.tour = new int[tour.length];
+        this.pos = new int[tour.length];
+        this.buffer = new int[tour.length];
+        restore(tour);
+    }
+
+    @Override
+    public int next(int a) {
+        int i = pos[a] + 1;
+        return tour[i == tour.length ? 0 : i];
+    }
+
+    @Override
+    public int prev(int a) {
+        int i = pos[a];
+        return tour[i == 0 ? tour.length - 1 : i - 1];
+    }
+
+    @Override
+    public boolean between(int a, int b, int c) {
+        int pa = pos[a];
+        int pb = pos[b];
+        int pc = pos[c];
+        return pa < pc ? pa < pb && pb < pc
+                : pa > pc && (pb > pa || pb < pc);
+    }
+
+    @Override
+    public void flip(int a, int b, int c, int d) {
+        if (a != next(b) || d != next(c)) {
+            throw new Error("Infeasible flip!");
+        }
+        int n = tour.length;
+        int ac = pos[c] - pos[a];
+        if (ac < 0) ac += n;
+        //a .. c and d .. b together hold all the cities
+        if (2 * (ac + 1) <= n) {
+            reverse(pos[a], ac + 1);
+        } else {
+            reverse(pos[d], n - ac - 1);
+        }
+    }
+
+    /**
+     * reverse the length cities from position i on, wrapping around the end of the array
+     */
+    private void reverse(int i, int length) {
+        int n = tour.length;
+        int j = i + length - 1;
+        if (j >= n) j -= n;
+        for (int k = length / 2; k > 0; --k) {
+            int ci = tour[i];
+            int cj = tour[j];
+            tour[i] = cj;
+            pos[cj] = i;
+            tour[j] = ci;
+            pos[ci] = j;
+            if (++i == n) i = 0;
+            if (--j < 0) j = n - 1;
+        }
+    }
+
+    private boolean isFeasibleNS4E(int t1, int t2, int t3, int t4, int t5, int t6, int t7, int t8) {
+        return (next(t1) == t2 && next(t3) == t4 && next(t5) == t6 && next(t7) == t8)
+                &&
+                between(t1, t7, t3) && between(t7, t3, t5) && between(t3, t5, t1) && between(t5, t1, t7);
+    }
+
+    @Override
+    public void nonSequ4Exchange(int t1, int t2, int t3, int t4, int t5, int t6, int t7, int t8) {
+        if (!isFeasibleNS4E(t1, t2, t3, t4, t5, t6, t7, t8)) {
+            throw new Error("Infeasible 4 exchange: " + t1 + " " +
+                    t2 + " " + t3 + " " + t4 + " " +
+                    t5 + " " + t6 + " " + t7 + " " + t8);
+        }
+        int k = copyPath(t6, t1, 0);
+        k = copyPath(t4, t5, k);
+        k = copyPath(t8, t3, k);
+        copyPath(t2, t7, k);
+        swapBuffer();
+    }
+
+    @Override
+    public void nonSequ4Exchange2(int t1, int t2, int t3, int t4, int t5, int t6, int t7, int t8) {
+        if (!isFeasibleNS4E(t1, t2, t3, t4, t5, t6, t7, t8)) {
+            throw new Error("Infeasible 4 exchange type 2: " + t1 + " " +
+                    t2 + " " + t3 + " " + t4 + " " +
+                    t5 + " " + t6 + " " + t7 + " " + t8);
+        }
+        int k = copyPath(t6, t1, 0);
+        k = copyPath(t4, t5, k);
+        k = copyReversedPath(t2, t7, k);
+        copyReversedPath(t8, t3, k);
+        swapBuffer();
+    }
+
+    /**
+     * copy the path from .. to into the buffer from index k on
+     *
+     * @return the index after the path
+     */
+    private int copyPath(int from, int to, int k) {
+        int n = tour.length;
+        int i = pos[from];
+        while (true) {
+            int city = tour[i];
+            buffer[k++] = city;
+            if (city == to) return k;
+            if (++i == n) i = 0;
+        }
+    }
+
+    /**
+     * copy the path from .. to into the buffer from index k on, walking it backwards from to
+     */
+    private int copyReversedPath(int from, int to, int k) {
+        int n = tour.length;
+        int i = pos[to];
+        while (true) {
+            int city = tour[i];
+            buffer[k++] = city;
+            if (city == from) return k;
+            if (--i < 0) i = n - 1;
+        }
+    }
+
+    private void swapBuffer() {
+        int[] old = tour;
+        tour = buffer;
+        buffer = old;
+        for (int i = 0; i < tour.length; ++i) {
+            pos[tour[i]] = i;
+        }
+    }
+
+    @Override
+    public int[] getCurrentTour() {
+        return tour.clone();
+    }
+
+    @Override
+    public void snapshot(int[] tour) {
+        System.arraycopy(this.tour, 0, tour, 0, tour.length);
+    }
+
+    @Override
+    public void restore(int[] tour) {
+        System.arraycopy(tour, 0, this.tour, 0, tour.length);
+        for (int i = 0; i < tour.length; ++i) {
+            pos[tour[i]] = i;
+        }
+    }
+
+    @Override
+    public ArrayList<Integer> getPath(int from, int to) {
+        ArrayList<Integer> path = new ArrayList<>();
+        int n = tour.length;
+        for (int i = pos[from]; tour[i] != to; i = i + 1 == n ? 0 : i + 1) {
+            path.add(tour[i]);
+        }
+        return path;
+    }
+
+    @Override
+    public boolean hasEdge(int a, int b) {
+        return next(a) == b || next(b) == a;
+    }
+
+    @Override
+    public int getHeadCityID() {
+        return tour[0];
+    }
+
+    @Override
+    public boolean checkTree() {
+        for (int i = 0; i < tour.length; ++i) {
+            if (pos[tour[i]] != i) {
+                System.err.println("Position error");
+                return false;
+            }
+        }
+        return true;
+    }
+}
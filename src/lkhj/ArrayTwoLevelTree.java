@@ -0,0 +1,443 @@
+package lkhj;
+
+import java.util.ArrayList;
+
+/**
+ * Two level doubly linked list kept in primitive arrays instead of Element and Parent objects.
+ * A city has its segment, its rank in the segment and its neighbours in the segment,
+ * a segment has its reverse bit, its rank in the tour, its size, its first and last city
+ * and its neighbouring segments. The links of a city stop at the ends of its segment,
+ * crossing a segment boundary goes through the segment links.
+ * A flip splits at most two segments by moving their smaller part into the neighbouring segment,
+ * so that the number of segments never changes.
+ */
+public class ArrayTwoLevelTree implements Tour {
+
+    //per city, NONE at the ends of the segment
+    private final int[] segment;
+    private final int[] rank;
+    private final int[] previous;
+    private final int[] next;
+    //per segment
+    private final boolean[] reversed;
+    private final int[] segmentRank;
+    private final int[] size;
+    private final int[] first;
+    private final int[] last;
+    private final int[] previousSegment;
+    private final int[] nextSegment;
+    private final int segmentsNum;
+    private int headSegment;
+    //scratch space of the local reversals, splits and segment reversals
+    private final int[] buffer;
+
+    private static final int NONE = -1;
+
+    public ArrayTwoLevelTree(int[] tour) {
+        int n = tour.length;
+        segment = new int[n];
+        rank = new int[n];
+        previous = new int[n];
+        next = new int[n];
+        buffer = new int[n];
+
+        int groupSize = Math.max(2, (int) Math.sqrt(n));
+        segmentsNum = Math.max(1, n / groupSize);
+        reversed = new boolean[segmentsNum];
+        segmentRank = new int[segmentsNum];
+        size = new int[segmentsNum];
+        first = new int[segmentsNum];
+        last = new int[segmentsNum];
+        previousSegment = new int[segmentsNum];
+        nextSegment = new int[segmentsNum];
+        restore(tour);
+    }
+
+    @Override
+    public void restore(int[] tour) {
+        int n = tour.length;
+        //the remainder goes to the first segments, one city each
+        int from = 0;
+        for (int s = 0; s < segmentsNum; ++s) {
+            int to = from + n / segmentsNum + (s < n % segmentsNum ? 1 : 0);
+            reversed[s] = false;
+            segmentRank[s] = s;
+            size[s] = to - from;
+            first[s] = tour[from];
+            last[s] = tour[to - 1];
+            previousSegment[s] = s == 0 ? segmentsNum - 1 : s - 1;
+            nextSegment[s] = s == segmentsNum - 1 ? 0 : s + 1;
+            for (int i = from; i < to; ++i) {
+                int city = tour[i];
+                segment[city] = s;
+                rank[city] = i - from;
+                previous[city] = i == from ? NONE : tour[i - 1];
+                next[city] = i == to - 1 ? NONE : tour[i + 1];
+            }
+            from = to;
+        }
+        headSegment = 0;
+    }
+
+    private int headOf(int s) {
+        return reversed[s] ? last[s] : first[s];
+    }
+
+    private int tailOf(int s) {
+        return reversed[s] ? first[s] : last[s];
+    }
+
+    @Override
+    public int next(int a) {
+        int s = segment[a];
+        if (reversed[s]) {
+            return a == first[s] ? headOf(nextSegment[s]) : previous[a];
+        }
+        return a == last[s] ? headOf(nextSegment[s]) : next[a];
+    }
+
+    @Override
+    public int prev(int a) {
+        int s = segment[a];
+        if (reversed[s]) {
+            return a == last[s] ? tailOf(previousSegment[s]) : next[a];
+        }
+        return a == first[s] ? tailOf(previousSegment[s]) : previous[a];
+    }
+
+    @Override
+    public int getHeadCityID() {
+        return headOf(headSegment);
+    }
+
+    @Override
+    public boolean between(int a, int b, int c) {
+        int sa = segment[a];
+        int sb = segment[b];
+        int sc = segment[c];
+        int ra = rank[a];
+        int rb = rank[b];
+        int rc = rank[c];
+
+        if (sa == sb && sa == sc) {
+            return reversed[sa] ?
+                    ra > rb && rb > rc || rc > ra && ra > rb || rb > rc && rc > ra
+                    :
+                    ra < rb && rb < rc || rc < ra && ra < rb || rb < rc && rc < ra;
+        } else if (sa == sb) {
+            return reversed[sa] ? ra > rb : ra < rb;
+        } else if (sb == sc) {
+            return reversed[sb] ? rb > rc : rb < rc;
+        } else if (sa == sc) {
+            return reversed[sa] ? ra < rc : ra > rc;
+        } else {
+            int pa = segmentRank[sa];
+            int pb = segmentRank[sb];
+            int pc = segmentRank[sc];
+            return pa < pb && pb < pc || pc < pa && pa < pb || pb < pc && pc < pa;
+        }
+    }
+
+    /**
+     * replace (a,b) and (c,d) by (b,c) and (a,d)
+     * a = next(b) d = next(c)
+     */
+    @Override
+    public void flip(int a, int b, int c, int d) {
+        if (a != next(b) || d != next(c)) {
+            throw new Error("Infeasible flip!");
+        }
+
+        //a split keeps the other path local or leaves both a and d at the head of their segments
+        for (int attempt = 0; attempt < 3; ++attempt) {
+            if (liesInOneSegment(a, c)) {
+                reverseInSegment(a, c);
+                return;
+            }
+            if (liesInOneSegment(d, b)) {
+                reverseInSegment(d, b);
+                return;
+            }
+            if (a != headOf(segment[a])) {
+                splitBefore(a);
+            } else if (d != headOf(segment[d])) {
+                splitBefore(d);
+            } else {
+                int sa = segment[a];
+                int sc = segment[c];
+                int count = segmentRank[sc] - segmentRank[sa];
+                if (count < 0) count += segmentsNum;
+                if (2 * (count + 1) <= segmentsNum) {
+                    reverseSegments(sa, sc);
+                } else {
+                    reverseSegments(segment[d], segment[b]);
+                }
+                return;
+            }
+        }
+        throw new Error("Flip did not settle");
+    }
+
+    /**
+     * @return whether the path from a forward to c stays in the segment of a
+     */
+    private boolean liesInOneSegment(int a, int c) {
+        int s = segment[a];
+        return s == segment[c] && (reversed[s] ? rank[a] >= rank[c] : rank[a] <= rank[c]);
+    }
+
+    /**
+     * reverse the path from a forward to c inside one segment
+     */
+    private void reverseInSegment(int a, int c) {
+        int s = segment[a];
+        //p .. q is the path in the order of the links
+        int p = reversed[s] ? c : a;
+        int q = reversed[s] ? a : c;
+        int before = previous[p];
+        int after = next[q];
+        int r = rank[p];
+
+        int count = 0;
+        for (int city = p; city != after; city = next[city]) {
+            buffer[count++] = city;
+        }
+        for (int k = 0; k < count; ++k) {
+            int city = buffer[count - 1 - k];
+            rank[city] = r + k;
+            previous[city] = k == 0 ? before : buffer[count - k];
+            next[city] = k == count - 1 ? after : buffer[count - 2 - k];
+        }
+        if (before == NONE) {
+            first[s] = q;
+        } else {
+            next[before] = q;
+        }
+        if (after == NONE) {
+            last[s] = p;
+        } else {
+            previous[after] = p;
+        }
+    }
+
+    /**
+     * cut the segment of x between prev(x) and x, the smaller part joins the neighbouring segment
+     */
+    private void splitBefore(int x) {
+        int s = segment[x];
+        //cities from x to the tail of the segment
+        int tail = reversed[s] ? rank[x] - rank[first[s]] + 1 : rank[last[s]] - rank[x] + 1;
+        int count = 0;
+        if (2 * tail <= size[s]) {
+            for (int city = x; count < tail; city = reversed[s] ? previous[city] : next[city]) {
+                buffer[count++] = city;
+            }
+            detach(s, count, reversed[s]);
+            int t = nextSegment[s];
+            for (int k = count - 1; k >= 0; --k) {
+                if (reversed[t]) {
+                    append(t, buffer[k]);
+                } else {
+                    prepend(t, buffer[k]);
+                }
+            }
+        } else {
+            int city = headOf(s);
+            for (int k = size[s] - tail; k > 0; --k) {
+                buffer[count++] = city;
+                city = reversed[s] ? previous[city] : next[city];
+            }
+            detach(s, count, !reversed[s]);
+            int t = previousSegment[s];
+            for (int k = 0; k < count; ++k) {
+                if (reversed[t]) {
+                    prepend(t, buffer[k]);
+                } else {
+                    append(t, buffer[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * drop count cities from the first or the last end of segment s in the order of the links
+     */
+    private void detach(int s, int count, boolean fromFirst) {
+        size[s] -= count;
+        if (fromFirst) {
+            int city = first[s];
+            for (int k = count; k > 0; --k) city = next[city];
+            first[s] = city;
+            previous[city] = NONE;
+        } else {
+            int city = last[s];
+            for (int k = count; k > 0; --k) city = previous[city];
+            last[s] = city;
+            next[city] = NONE;
+        }
+    }
+
+    private void append(int s, int city) {
+        int end = last[s];
+        segment[city] = s;
+        rank[city] = rank[end] + 1;
+        previous[city] = end;
+        next[city] = NONE;
+        next[end] = city;
+        last[s] = city;
+        ++size[s];
+    }
+
+    private void prepend(int s, int city) {
+        int end = first[s];
+        segment[city] = s;
+        rank[city] = rank[end] - 1;
+        next[city] = end;
+        previous[city] = NONE;
+        previous[end] = city;
+        first[s] = city;
+        ++size[s];
+    }
+
+    /**
+     * reverse the sequence of segments from sa forward to sc
+     */
+    private void reverseSegments(int sa, int sc) {
+        int before = previousSegment[sa];
+        int after = nextSegment[sc];
+        int r = segmentRank[sa];
+
+        int count = 0;
+        for (int s = sa; ; s = nextSegment[s]) {
+            buffer[count++] = s;
+            if (s == sc) break;
+        }
+        for (int k = 0; k < count; ++k) {
+            int s = buffer[count - 1 - k];
+            reversed[s] = !reversed[s];
+            segmentRank[s] = (r + k) % segmentsNum;
+            if (segmentRank[s] == 0) headSegment = s;
+            previousSegment[s] = k == 0 ? before : buffer[count - k];
+            nextSegment[s] = k == count - 1 ? after : buffer[count - 2 - k];
+        }
+        nextSegment[before] = sc;
+        previousSegment[after] = sa;
+    }
+
+    /**
+     * remove (a,b) and (c,d), add (b,c) and (a,d) whatever the orientation of the tour
+     */
+    private void move(int a, int b, int c, int d) {
+        if (a == next(b)) {
+            flip(a, b, c, d);
+        } else {
+            flip(b, a, d, c);
+        }
+    }
+
+    private boolean isFeasibleNS4E(int t1, int t2, int t3, int t4, int t5, int t6, int t7, int t8) {
+        return (next(t1) == t2 && next(t3) == t4 && next(t5) == t6 && next(t7) == t8)
+                &&
+                between(t1, t7, t3) && between(t7, t3, t5) && between(t3, t5, t1) && between(t5, t1, t7);
+    }
+
+    /**
+     * the double bridge as four 2-opt moves:
+     * D A B C, D C' B' A', D C B' A', D C B A' and D C B A
+     * with A = t2 .. t7, B = t8 .. t3, C = t4 .. t5 and D = t6 .. t1
+     */
+    @Override
+    public void nonSequ4Exchange(int t1, int t2, int t3, int t4, int t5, int t6, int t7, int t8) {
+        if (!isFeasibleNS4E(t1, t2, t3, t4, t5, t6, t7, t8)) {
+            throw new Error("Infeasible 4 exchange: " + t1 + " " +
+                    t2 + " " + t3 + " " + t4 + " " +
+                    t5 + " " + t6 + " " + t7 + " " + t8);
+        }
+        move(t2, t1, t5, t6);
+        move(t5, t1, t4, t3);
+        move(t3, t5, t8, t7);
+        move(t7, t3, t2, t6);
+    }
+
+    /**
+     * D A B C, D C' B' A', D C B' A', D C A B, D C A' B and D C A' B'
+     */
+    @Override
+    public void nonSequ4Exchange2(int t1, int t2, int t3, int t4, int t5, int t6, int t7, int t8) {
+        if (!isFeasibleNS4E(t1, t2, t3, t4, t5, t6, t7, t8)) {
+            throw new Error("Infeasible 4 exchange type 2: " + t1 + " " +
+                    t2 + " " + t3 + " " + t4 + " " +
+                    t5 + " " + t6 + " " + t7 + " " + t8);
+        }
+        move(t2, t1, t5, t6);
+        move(t5, t1, t4, t3);
+        move(t3, t5, t2, t6);
+        move(t2, t5, t7, t8);
+        move(t8, t2, t3, t6);
+    }
+
+    @Override
+    public int[] getCurrentTour() {
+        int[] tour = new int[segment.length];
+        snapshot(tour);
+        return tour;
+    }
+
+    @Override
+    public void snapshot(int[] tour) {
+        int city = getHeadCityID();
+        for (int i = 0; i < tour.length; ++i) {
+            tour[i] = city;
+            city = next(city);
+        }
+    }
+
+    @Override
+    public ArrayList<Integer> getPath(int from, int to) {
+        ArrayList<Integer> path = new ArrayList<>();
+        for (int city = from; city != to; city = next(city)) {
+            path.add(city);
+        }
+        return path;
+    }
+
+    @Override
+    public boolean hasEdge(int a, int b) {
+        return next(a) == b || next(b) == a;
+    }
+
+    @Override
+    public boolean checkTree() {
+        int cities = 0;
+        int s = headSegment;
+        for (int r = 0; r < segmentsNum; ++r) {
+            if (segmentRank[s] != r || previousSegment[nextSegment[s]] != s) {
+                System.err.println("Segment link error");
+                return false;
+            }
+            int count = 0;
+            int city = first[s];
+            while (true) {
+                ++count;
+                if (segment[city] != s
+                        || city != first[s] && (previous[city] == NONE || rank[previous[city]] != rank[city] - 1)) {
+                    System.err.println("City link error");
+                    return false;
+                }
+                if (next[city] == NONE) break;
+                city = next[city];
+            }
+            if (city != last[s] || count != size[s]) {
+                System.err.println("Segment size error");
+                return false;
+            }
+            cities += count;
+            s = nextSegment[s];
+        }
+        if (s != headSegment || cities != segment.length) {
+            System.err.println("Segment ring error");
+            return false;
+        }
+        return true;
+    }
+}
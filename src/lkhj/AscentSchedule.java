@@ -0,0 +1,178 @@
+package lkhj;
+
+/**
+ * Step size policy of the subgradient ascent.
+ * After every 1-tree the ascent calls step() and moves pi by the returned step
+ * along the subgradient, until isFinished() or one of the budgets of LKHJ stops it.
+ * A schedule keeps state, so one object serves a single ascent at a time.
+ */
+public abstract class AscentSchedule {
+
+    /**
+     * reset the schedule before an ascent
+     */
+    abstract void start(int dimension);
+
+    /**
+     * @param w        length of the 1-tree of this iteration
+     * @param LB       best length so far, w included
+     * @param improved whether w raised the best length
+     * @param v        subgradient of this iteration, degree - 2 of every node
+     * @return step size of the pi update after this iteration
+     */
+    abstract double step(double w, double LB, boolean improved, double[] v);
+
+    abstract boolean isFinished();
+
+    /**
+     * @return the schedule and its parameters, part of the key of the preprocessing cache
+     */
+    String parameters() {
+        return getClass().getName();
+    }
+
+    /**
+     * the original schedule: tk starts at 2 and the period at n / 2,
+     * both are halved at the end of every period, the period is doubled
+     * when the last iteration of a period still improves
+     */
+    public static class Halving extends AscentSchedule {
+        private double tk;
+        private int period;
+        private int iter;
+        private boolean firstPeriod;
+
+        @Override
+        void start(int dimension) {
+            tk = 2;
+            period = dimension / 2;
+            iter = 0;
+            firstPeriod = true;
+        }
+
+        @Override
+        double step(double w, double LB, boolean improved, double[] v) {
+            if (improved) {
+                if (iter == period) period *= 2;
+            } else if (firstPeriod) {
+                tk /= 2;
+                firstPeriod = false;
+            }
+            double step = tk;
+            ++iter;
+            if (iter == period) {
+                iter = 0;
+                period /= 2;
+                tk /= 2;
+            }
+            return step;
+        }
+
+        @Override
+        boolean isFinished() {
+            return period == 0 || tk < 0.000001;
+        }
+    }
+
+    /**
+     * Polyak steps lambda * (target - w) / |v|^2 aiming at a target slightly above the best bound,
+     * lambda is halved after patience iterations without improvement
+     */
+    public static class Polyak extends AscentSchedule {
+        private final double gap;
+        private final int patience;
+        private double lambda;
+        private int sinceImprovement;
+
+        /**
+         * @param gap      the target is LB + gap * |LB|
+         * @param patience iterations without improvement before lambda is halved
+         */
+        public Polyak(double gap, int patience) {
+            this.gap = gap;
+            this.patience = patience;
+        }
+
+        public Polyak() {
+            this(0.01, 50);
+        }
+
+        @Override
+        void start(int dimension) {
+            lambda = 2;
+            sinceImprovement = 0;
+        }
+
+        @Override
+        double step(double w, double LB, boolean improved, double[] v) {
+            if (improved) {
+                sinceImprovement = 0;
+            } else if (++sinceImprovement >= patience) {
+                sinceImprovement = 0;
+                lambda /= 2;
+            }
+            double norm = 0;
+            for (double vi : v) {
+                norm += vi * vi;
+            }
+            return norm == 0 ? 0 : lambda * (LB + gap * Math.abs(LB) - w) / norm;
+        }
+
+        @Override
+        boolean isFinished() {
+            return lambda < 0.0001;
+        }
+
+        @Override
+        String parameters() {
+            return super.parameters() + " " + gap + " " + patience;
+        }
+    }
+
+    /**
+     * the schedule of LKH: the period starts at max(n / 2, 100) and the step at 1,
+     * during the initial phase the step doubles at every improvement, and the first failure
+     * in the second half of a period ends the phase with 3/4 of the step and a new period
+     */
+    public static class LKHStyle extends AscentSchedule {
+        private double tk;
+        private int period;
+        private int p; //index in the period of the update that gave the last 1-tree
+        private boolean initialPhase;
+
+        @Override
+        void start(int dimension) {
+            tk = 1;
+            period = Math.max(dimension / 2, 100);
+            p = 0;
+            initialPhase = true;
+        }
+
+        @Override
+        double step(double w, double LB, boolean improved, double[] v) {
+            //p == 0: the 1-tree of the initial pi is the reference, not an improvement
+            if (p > 0) {
+                if (improved) {
+                    if (initialPhase) tk *= 2;
+                    if (p == period) period *= 2;
+                } else if (initialPhase && p > period / 2) {
+                    initialPhase = false;
+                    p = 0;
+                    tk = 3 * tk / 4;
+                }
+            }
+            if (p == period) {
+                p = 0;
+                period /= 2;
+                tk /= 2;
+            }
+            ++p;
+            return tk;
+        }
+
+        @Override
+        boolean isFinished() {
+            return period == 0 || tk < 0.000001;
+        }
+    }
+}
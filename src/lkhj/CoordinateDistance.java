@@ -0,0 +1,83 @@
+package lkhj;
+
+/**
+ * Distances computed on demand from the city coordinates,
+ * so the memory consumption is O(n) instead of O(n^2).
+ * Costs follow the TSPLIB definition of the coordinate type.
+ */
+public class CoordinateDistance implements DistanceFunction {
+
+    /**
+     * TSPLIB EDGE_WEIGHT_TYPE of a coordinate instance
+     */
+    public enum Type {EUC_2D, MAN_2D, CEIL_2D, ATT, GEO}
+
+    static private final double PI = 3.141592;
+    static private final double EARTH_RADIUS = 6378.388;
+
+    final double[] x;
+    final double[] y;
+    final Type type;
+    private double[] latitude;
+    private double[] longitude;
+
+    public CoordinateDistance(double[] x, double[] y) {
+        this(x, y, Type.EUC_2D);
+    }
+
+    public CoordinateDistance(double[] x, double[] y, Type type) {
+        if (x.length != y.length) {
+            throw new Error("Coordinate arrays of different length: " + x.length + " " + y.length);
+        }
+        this.x = x;
+        this.y = y;
+        this.type = type;
+        if (type == Type.GEO) {
+            latitude = new double[x.length];
+            longitude = new double[x.length];
+            for (int i = 0; i < x.length; ++i) {
+                latitude[i] = toRadian(x[i]);
+                longitude[i] = toRadian(y[i]);
+            }
+        }
+    }
+
+    /**
+     * convert a DDD.MM coordinate to radians as TSPLIB does
+     */
+    static private double toRadian(double coordinate) {
+        int deg = (int) coordinate;
+        double min = coordinate - deg;
+        return PI * (deg + 5.0 * min / 3.0) / 180.0;
+    }
+
+    @Override
+    public int getDimension() {
+        return x.length;
+    }
+
+    @Override
+    public double getCost(int i, int j) {
+        double dx = x[i] - x[j];
+        double dy = y[i] - y[j];
+        switch (type) {
+            case EUC_2D:
+                return Math.round(Math.sqrt(dx * dx + dy * dy));
+            case MAN_2D:
+                return Math.round(Math.abs(dx) + Math.abs(dy));
+            case CEIL_2D:
+                return Math.ceil(Math.sqrt(dx * dx + dy * dy));
+            case ATT: {
+                double r = Math.sqrt((dx * dx + dy * dy) / 10.0);
+                long t = Math.round(r);
+                return t < r ? t + 1 : t;
+            }
+            default: {
+                double q1 = Math.cos(longitude[i] - longitude[j]);
+                double q2 = Math.cos(latitude[i] - latitude[j]);
+                double q3 = Math.cos(latitude[i] + latitude[j]);
+                return (int) (EARTH_RADIUS * Math.acos(0.5 * ((1.0 + q1) * q2 - (1.0 - q1) * q3)) + 1.0);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package lkhj;
+
+/**
+ * Cost oracle of a symmetric TSP instance.
+ * Implementations decide how the weights are stored (or computed),
+ * the solver only asks for the cost between two cities.
+ */
+public interface DistanceFunction {
+
+    /**
+     * @return number of cities
+     */
+    int getDimension();
+
+    /**
+     * find the cost between city i and city j,
+     * may be called from several threads at once
+     *
+     * @param i index of i
+     * @param j index of j
+     * @return cost of edge (i, j)
+     */
+    double getCost(int i, int j);
+}
@@ -6,14 +6,14 @@ package lkhj;
  * Created by xinyun on 03/07/17.
  */
 class GreedyTSP {
-    private double[][] costMatrix;
+    private DistanceFunction distance;
     private int[] tour;
     private boolean[] isInTour;
 
-    GreedyTSP(double[][] costMatrix){
-        this.costMatrix = costMatrix;
-        tour = new int[costMatrix.length];
-        isInTour = new boolean[costMatrix.length];
+    GreedyTSP(DistanceFunction distance){
+        this.distance = distance;
+        tour = new int[distance.getDimension()];
+        isInTour = new boolean[distance.getDimension()];
     }
 
     int[] solve(){
@@ -36,7 +36,7 @@ class GreedyTSP {
 
         for (int i=0; i < tour.length; ++i){
             if (i != n && !isInTour[i]){
-                double f = costMatrix[n][i];
+                double f = distance.getCost(n, i);
                 if (f < smallestF){
                     smallestF = f;
                     nearestN = i;
@@ -7,7 +7,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class InstanceReader {
-    static public double[][] ReadTSPInstance(String file) throws IOException {
+    static public DistanceFunction ReadTSPInstance(String file) throws IOException {
         BufferedReader br = new BufferedReader(new FileReader(file));
 
         String line;
@@ -21,35 +21,17 @@ public class InstanceReader {
             }
         }
 
-        double[][] mat = new double[dimension][];
-        for (int i=0; i < dimension; ++i){
-            mat[i] = new double[i+1];
-        }
-        double[][] coors = new double[dimension][2];
+        double[] x = new double[dimension];
+        double[] y = new double[dimension];
         int count = 0;
         while (!(line = br.readLine()).equals("EOF")) {
             String value[] = line.split(" ");
-            coors[count][0] = Double.valueOf(value[1]);
-            coors[count][1] = Double.valueOf(value[2]);
+            x[count] = Double.valueOf(value[1]);
+            y[count] = Double.valueOf(value[2]);
             ++count;
         }
+        br.close();
 
-        for (int i = 0; i < dimension; ++i) {
-            for (int j = i + 1; j < dimension; ++j) {
-
-                setMat(mat, i, j, Math.round(Math.sqrt(
-                        (coors[i][0] - coors[j][0]) * (coors[i][0] - coors[j][0])
-                                + (coors[i][1] - coors[j][1]) * (coors[i][1] - coors[j][1]))));
-            }
-        }
-        return mat;
-    }
-
-    static private void setMat(double[][] mat, int i, int j, double value){
-        if (i > j){
-            mat[i][j] = value;
-        }else{
-            mat[j][i] = value;
-        }
+        return new CoordinateDistance(x, y);
     }
 }
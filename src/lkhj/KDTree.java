@@ -0,0 +1,217 @@
+package lkhj;
+
+/**
+ * A 2-d tree over the city coordinates used to generate candidate neighbours
+ * in O(n log n) instead of sorting all the other cities for every city.
+ * The tree is implicit: the cities are permuted so that every range [lo, hi)
+ * has its median at (lo + hi) / 2, split alternately on x and y.
+ */
+class KDTree {
+
+    private final double[] x;
+    private final double[] y;
+    private final int[] cities;
+
+    //bounded max heap of the current query, sorted on demand
+    private int[] heapCities;
+    private double[] heapDistances;
+    private int heapSize;
+    private int heapCapacity;
+
+    KDTree(double[] x, double[] y) {
+        this.x = x;
+        this.y = y;
+        cities = new int[x.length];
+        for (int i = 0; i < cities.length; ++i) {
+            cities[i] = i;
+        }
+        build(0, cities.length, 0);
+    }
+
+    private void build(int lo, int hi, int depth) {
+        if (hi - lo <= 1) return;
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, depth % 2 == 0 ? x : y);
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    /**
+     * quick select: put the k-th smallest of cities[lo..hi] at position k
+     */
+    private void select(int lo, int hi, int k, double[] axis) {
+        while (hi > lo) {
+            double pivot = axis[cities[(lo + hi) >>> 1]];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (axis[cities[i]] < pivot) ++i;
+                while (axis[cities[j]] > pivot) --j;
+                if (i <= j) {
+                    int tmp = cities[i];
+                    cities[i] = cities[j];
+                    cities[j] = tmp;
+                    ++i;
+                    --j;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * find the k nearest cities of a city, nearest first
+     *
+     * @param out    receives the neighbours
+     * @param offset first position written in out
+     * @return number of neighbours found
+     */
+    int nearest(int city, int k, int[] out, int offset) {
+        return nearestInQuadrant(city, k, -1, out, offset);
+    }
+
+    /**
+     * find the k nearest cities of a city lying in a quadrant around it,
+     * quadrants are numbered counterclockwise from the upper right one, -1 means the whole plane
+     *
+     * @return number of neighbours found
+     */
+    int nearestInQuadrant(int city, int k, int quadrant, int[] out, int offset) {
+        if (heapCities == null || heapCities.length < k) {
+            heapCities = new int[k];
+            heapDistances = new double[k];
+        }
+        heapSize = 0;
+        heapCapacity = k;
+        search(0, cities.length, 0, city, quadrant);
+
+        int found = heapSize;
+        //pop the max repeatedly to get the neighbours sorted nearest first
+        while (heapSize > 0) {
+            out[offset + heapSize - 1] = heapCities[0];
+            removeTop();
+        }
+        return found;
+    }
+
+    private void search(int lo, int hi, int depth, int city, int quadrant) {
+        if (hi <= lo) return;
+        int mid = (lo + hi) >>> 1;
+        int c = cities[mid];
+        if (c != city && inQuadrant(city, c, quadrant)) {
+            double dx = x[c] - x[city];
+            double dy = y[c] - y[city];
+            offer(c, dx * dx + dy * dy);
+        }
+        if (hi - lo == 1) return;
+
+        boolean splitOnX = depth % 2 == 0;
+        double diff = splitOnX ? x[city] - x[c] : y[city] - y[c];
+        boolean lowFirst = diff < 0;
+
+        //the low side holds coordinates <= split value, the high side >= split value
+        boolean lowUseful = quadrantMayReach(quadrant, splitOnX, false, diff);
+        boolean highUseful = quadrantMayReach(quadrant, splitOnX, true, diff);
+
+        if (lowFirst) {
+            if (lowUseful) search(lo, mid, depth + 1, city, quadrant);
+            if (highUseful && (heapSize < heapCapacity || diff * diff <= heapDistances[0])) {
+                search(mid + 1, hi, depth + 1, city, quadrant);
+            }
+        } else {
+            if (highUseful) search(mid + 1, hi, depth + 1, city, quadrant);
+            if (lowUseful && (heapSize < heapCapacity || diff * diff <= heapDistances[0])) {
+                search(lo, mid, depth + 1, city, quadrant);
+            }
+        }
+    }
+
+    /**
+     * prune the half planes lying entirely outside the quadrant
+     *
+     * @param diff coordinate of the query minus the split value
+     */
+    static private boolean quadrantMayReach(int quadrant, boolean splitOnX, boolean high, double diff) {
+        if (quadrant < 0) return true;
+        boolean positive = splitOnX ? quadrant == 0 || quadrant == 3 : quadrant == 0 || quadrant == 1;
+        //low side cannot reach a positive quadrant when its max (the split) is below the query
+        if (positive && !high) return diff <= 0;
+        if (!positive && high) return diff >= 0;
+        return true;
+    }
+
+    private boolean inQuadrant(int city, int c, int quadrant) {
+        if (quadrant < 0) return true;
+        double dx = x[c] - x[city];
+        double dy = y[c] - y[city];
+        switch (quadrant) {
+            case 0:
+                return dx >= 0 && dy > 0 || dx > 0 && dy == 0;
+            case 1:
+                return dx < 0 && dy >= 0;
+            case 2:
+                return dx <= 0 && dy < 0;
+            default:
+                return dx > 0 && dy < 0 || dx == 0 && dy == 0;
+        }
+    }
+
+    private void offer(int c, double distance) {
+        if (heapSize < heapCapacity) {
+            int i = heapSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!greater(distance, c, heapDistances[parent], heapCities[parent])) break;
+                heapCities[i] = heapCities[parent];
+                heapDistances[i] = heapDistances[parent];
+                i = parent;
+            }
+            heapCities[i] = c;
+            heapDistances[i] = distance;
+        } else if (greater(heapDistances[0], heapCities[0], distance, c)) {
+            heapCities[0] = c;
+            heapDistances[0] = distance;
+            siftDown();
+        }
+    }
+
+    private void removeTop() {
+        --heapSize;
+        heapCities[0] = heapCities[heapSize];
+        heapDistances[0] = heapDistances[heapSize];
+        siftDown();
+    }
+
+    private void siftDown() {
+        int i = 0;
+        int c = heapCities[0];
+        double d = heapDistances[0];
+        for (; ; ) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && greater(heapDistances[child + 1], heapCities[child + 1],
+                    heapDistances[child], heapCities[child])) {
+                ++child;
+            }
+            if (!greater(heapDistances[child], heapCities[child], d, c)) break;
+            heapCities[i] = heapCities[child];
+            heapDistances[i] = heapDistances[child];
+            i = child;
+        }
+        heapCities[i] = c;
+        heapDistances[i] = d;
+    }
+
+    /**
+     * order by distance, ties broken by city index
+     */
+    static private boolean greater(double da, int a, double db, int b) {
+        return da > db || da == db && a > b;
+    }
+}
@@ -1,7 +1,15 @@
 package lkhj;
 
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * An LK heuristic implementation for TSP problem
@@ -9,28 +17,177 @@ import java.util.*;
  */
 public class LKHJ {
 
+    /**
+     * how the candidate neighbours of a city are chosen
+     */
+    public enum CandidateType {
+        /**
+         * the nearest cities according to cost + pi
+         */
+        NEAREST,
+        /**
+         * the nearest cities of each quadrant around the city, geometric instances only
+         */
+        QUADRANT,
+        /**
+         * the cities of smallest alpha-nearness computed from the best 1-tree
+         */
+        ALPHA
+    }
+
+    /**
+     * graph over which the 1-trees of the subgradient ascent are computed
+     */
+    public enum AscentMode {
+        /**
+         * the complete graph, O(n^2) per iteration
+         */
+        DENSE,
+        /**
+         * the SPARSE_DEGREE nearest neighbour graph, O(n log n) per iteration.
+         * Not equivalent to DENSE: the 1-trees ignore the other edges, so pi and the candidates
+         * are usually worse and the tours longer. Above DENSE_CHECK_LIMIT the reported LB
+         * is the weight of a sparse 1-tree, an estimate and not a valid lower bound.
+         */
+        SPARSE
+    }
+
+    /**
+     * data structure holding the tour during the LK search
+     */
+    public enum TourType {
+        /**
+         * ARRAY up to ARRAY_TOUR_LIMIT cities, THREE_LEVEL above THREE_LEVEL_LIMIT
+         * and TWO_LEVEL_ARRAYS in between
+         */
+        AUTOMATIC,
+        /**
+         * ArrayTour, O(n) flips
+         */
+        ARRAY,
+        /**
+         * TwoLevelTree, an object per city and per segment
+         */
+        TWO_LEVEL,
+        /**
+         * ArrayTwoLevelTree, the two level list in primitive arrays
+         */
+        TWO_LEVEL_ARRAYS,
+        /**
+         * ThreeLevelTree, O(n^(1/3)) flips
+         */
+        THREE_LEVEL
+    }
+
     private int MAX_CANDIDATES = 5;
     private int MAX_MOVE_LEVEL = 10;
     private int MAX_RUN_TIMES = 10;
     private double PRECISENESS = 1.0e-10;
+    private int RUN_THREADS = 1;
+    private int KICKS = 0;
+    private int KICK_SEGMENT = 50;
+    private int MERGE_TOURS = 0;
+    private int BACKBONE_RUNS = 0;
+    private ExecutorService runExecutor = null;
+    private boolean diagnostics = false;
+    //source of the seeds of the runs
     private Random random;
-    private double[][] costMatrix;
-    private TwoLevelTree tree;
-    private double objective;
+    private DistanceFunction distance;
+    private int dimension;
     private double LB;
-    private ArrayList<ArrayList<Integer>> candidatesTable;
+    //candidates of city i are candidates[i * candidateStride ... (i + 1) * candidateStride - 1],
+    //candidateCosts holds the cost of the edge to each of them
+    private int[] candidates;
+    private double[] candidateCosts;
+    private int candidateStride;
     private double[] pi;
-    private TwoLevelTree bestTree;
+    private SharedBestTour best;
+    //edges in the tours of all the runs counted so far, the two neighbours of every city, -1 for none
+    private int[] backbone;
+    private int backboneRuns;
+    //the backbone once fixed, null before
+    private int[] fixedEdges;
+    private int fixedCount;
+    private String preprocessFile = null;
+    private CandidateType candidateType = CandidateType.NEAREST;
+    private int KD_POOL_FACTOR = 2;
+    private TourType tourType = TourType.AUTOMATIC;
+    private int ARRAY_TOUR_LIMIT = 5000;
+    private int THREE_LEVEL_LIMIT = 200000;
+    private int SEGMENT_SIZE = 0;
+    private boolean adaptiveSegments = true;
+    private AscentMode ascentMode = AscentMode.DENSE;
+    private int SPARSE_DEGREE = 10;
+    private int DENSE_CHECK_LIMIT = 20000;
+    private int ASCENT_THREADS = 1;
+    private int MIN_PARALLEL_GRAIN = 2048;
+    private AscentSchedule ascentSchedule = new AscentSchedule.Halving();
+    private long ASCENT_TIME_LIMIT = 0;
+    private int ASCENT_MAX_ITERATIONS = 0;
+    private int STAGNATION_ITERATIONS = 0;
+    private double STAGNATION_EPSILON = 1.0e-6;
+    //every improvement of LB during the ascent: milliseconds since its start, iteration, LB
+    private ArrayList<double[]> ascentTrace = new ArrayList<>();
+    private ParallelLoop ascentLoop;
+
+    public LKHJ(DistanceFunction distance, Random random){
+        this.distance = distance;
+        this.dimension = distance.getDimension();
+        this.random = random;
+    }
 
     public LKHJ(double[][] costMatrix, Random random){
-        this.costMatrix = costMatrix;
-        this.random = random;
+        this(new MatrixDistance(costMatrix), random);
     }
 
     public void setMAX_RUN_TIMES(int max){
         MAX_RUN_TIMES = max;
     }
 
+    /**
+     * number of runs made at once, 1 makes them one after the other in the calling thread.
+     * The runs of a round start from tours biased by the best tour of the earlier rounds only,
+     * so the result depends on the number of threads but not on their scheduling.
+     */
+    public void setRUN_THREADS(int threads){ RUN_THREADS = threads;}
+
+    /**
+     * executor of the runs instead of a pool of RUN_THREADS threads created by solve, null for the pool.
+     * It is not shut down by the solver.
+     */
+    public void setRunExecutor(ExecutorService executor){ runExecutor = executor;}
+
+    /**
+     * iterated LK: after its descent every run kicks its tour this many times with a double bridge,
+     * improves it again around the kick and keeps it only when it got shorter. 0 disables the kicks.
+     */
+    public void setKICKS(int kicks){ KICKS = kicks;}
+
+    /**
+     * the 8 ends of a kick lie on a path of at most this many cities starting at a random city
+     */
+    public void setKICK_SEGMENT(int length){ KICK_SEGMENT = length;}
+
+    /**
+     * tour merging: after every round the tours of its runs are merged into the best tour
+     * by partition crossover, and at the end the best tour is merged again with the
+     * this many shortest run tours until it stops improving. 0 disables the merging.
+     */
+    public void setMERGE_TOURS(int tours){ MERGE_TOURS = tours;}
+
+    /**
+     * backbone: once this many runs are completed, the edges found in all of their tours are fixed.
+     * The later runs start from tours containing them and their moves never remove them,
+     * which leaves a smaller problem to search. 0 disables the backbone.
+     */
+    public void setBACKBONE_RUNS(int runs){ BACKBONE_RUNS = runs;}
+
+    /**
+     * print after every run the bytes its search allocated and the segment statistics
+     * of a two level tree, off by default
+     */
+    public void setDiagnostics(boolean on){ diagnostics = on;}
+
     public void setMAX_CANDIDATES(int max){
         MAX_CANDIDATES = max;
     }
@@ -41,132 +198,787 @@ public class LKHJ {
 
     public void setPRECISENESS(int preciseness){ PRECISENESS = preciseness;}
 
+    public void setTourType(TourType type){ tourType = type;}
+
+    /**
+     * the AUTOMATIC tour type keeps tours of up to this many cities in an ArrayTour
+     */
+    public void setARRAY_TOUR_LIMIT(int limit){ ARRAY_TOUR_LIMIT = limit;}
+
+    /**
+     * the AUTOMATIC tour type keeps tours of more than this many cities in a ThreeLevelTree
+     */
+    public void setTHREE_LEVEL_LIMIT(int limit){ THREE_LEVEL_LIMIT = limit;}
+
+    /**
+     * target segment size of the TWO_LEVEL tour type, 0 for sqrt(n)
+     *
+     * @param adaptive let the tree tune the size to the flips of the search
+     */
+    public void setSEGMENT_SIZE(int size, boolean adaptive){
+        SEGMENT_SIZE = size;
+        adaptiveSegments = adaptive;
+    }
+
+    /**
+     * keep the preprocessing (pi, LB, best 1-tree and candidates) in a binary file,
+     * a later solve of the same instance loads it instead of recomputing
+     *
+     * @param file cache file, null to disable
+     */
+    public void setPreprocessFile(String file){ preprocessFile = file;}
+
+    public void setCandidateType(CandidateType type){ candidateType = type;}
+
+    public void setAscentMode(AscentMode mode){ ascentMode = mode;}
+
+    public void setSPARSE_DEGREE(int degree){ SPARSE_DEGREE = degree;}
+
+    /**
+     * the sparse ascent recomputes its best pi on the complete graph
+     * up to this dimension so that LB is a valid bound, above it LB is only an estimate
+     */
+    public void setDENSE_CHECK_LIMIT(int limit){ DENSE_CHECK_LIMIT = limit;}
+
+    /**
+     * number of threads of the subgradient ascent, at most the number of processors,
+     * 1 runs it in the calling thread. The bound and pi do not depend on the number of threads.
+     */
+    public void setASCENT_THREADS(int threads){ ASCENT_THREADS = threads;}
+
+    public void setAscentSchedule(AscentSchedule schedule){ ascentSchedule = schedule;}
+
+    /**
+     * stop the subgradient ascent after this many milliseconds, 0 for no limit
+     */
+    public void setASCENT_TIME_LIMIT(long milliseconds){ ASCENT_TIME_LIMIT = milliseconds;}
+
+    /**
+     * stop the subgradient ascent after this many iterations, 0 for no limit
+     */
+    public void setASCENT_MAX_ITERATIONS(int iterations){ ASCENT_MAX_ITERATIONS = iterations;}
+
+    /**
+     * stop the subgradient ascent when LB rose by less than epsilon * |LB|
+     * during the last iterations, 0 iterations disables the test
+     */
+    public void setSTAGNATION(int iterations, double epsilon){
+        STAGNATION_ITERATIONS = iterations;
+        STAGNATION_EPSILON = epsilon;
+    }
+
+    /**
+     * @return the improvements of LB during the last ascent:
+     * milliseconds since its start, iteration and LB
+     */
+    public double[][] getAscentTrace(){
+        return ascentTrace.toArray(new double[ascentTrace.size()][]);
+    }
+
+    private void genCandidatesTable(OneTree oneTree, int count){
+        if (candidateType == CandidateType.ALPHA){
+            setCandidatesTable(new AlphaNearness(distance, pi, oneTree).generate(count),
+                    Math.min(count, dimension - 1));
+        }else if (distance instanceof CoordinateDistance
+                && ((CoordinateDistance) distance).type != CoordinateDistance.Type.GEO){
+            genKDTreeTable(count);
+        }else{
+            genNearestTable(count);
+        }
+    }
+
+    private void setCandidatesTable(int[] table, int stride){
+        candidates = table;
+        candidateStride = stride;
+        candidateCosts = new double[table.length];
+        for (int i = 0; i < dimension; ++i){
+            for (int k = i * stride; k < (i + 1) * stride; ++k){
+                candidateCosts[k] = getCost(i, table[k]);
+            }
+        }
+    }
+
     private void genNearestTable(int nearestCount){
-        candidatesTable = new ArrayList<>();
+        setCandidatesTable(selectNearest(nearestCount), Math.min(nearestCount, dimension - 1));
+    }
 
-        for (int i=0; i<costMatrix.length; ++i){
-            ArrayList<Integer> line = new ArrayList<>(costMatrix.length-1);
-            for (int j=0; j<costMatrix.length; ++j){
-                if (i != j){
-                    line.add(j);
+    /**
+     * keep for every city the nearestCount cities of smallest cost + pi, ties by index
+     *
+     * @return the cities with a stride of min(nearestCount, n - 1)
+     */
+    private int[] selectNearest(int nearestCount){
+        int[] cities = new int[dimension];
+        for (int i = 0; i < dimension; ++i){
+            cities[i] = i;
+        }
+        return selectNearest(nearestCount, cities);
+    }
+
+    /**
+     * keep for each of the cities the nearestCount other ones of smallest cost + pi, ties by order
+     *
+     * @return the cities with a stride of min(nearestCount, cities.length - 1), in the order of cities
+     */
+    private int[] selectNearest(int nearestCount, int[] cities){
+        int stride = Math.min(nearestCount, cities.length - 1);
+        int[] table = new int[cities.length * stride];
+        double[] keys = new double[stride];
+
+        for (int i = 0; i < cities.length; ++i){
+            int offset = i * stride;
+            int found = 0;
+            for (int j = 0; j < cities.length; ++j){
+                if (i == j) continue;
+                double key = getCost(cities[i], cities[j]) + pi[cities[j]];
+                if (found == stride && key >= keys[stride - 1]) continue;
+                int k = found < stride ? found++ : stride - 1;
+                while (k > 0 && keys[k - 1] > key){
+                    keys[k] = keys[k - 1];
+                    table[offset + k] = table[offset + k - 1];
+                    --k;
                 }
+                keys[k] = key;
+                table[offset + k] = cities[j];
             }
-            candidatesTable.add(line);
         }
+        return table;
+    }
 
-        for (int i = 0; i< candidatesTable.size(); ++i){
-            final int index = i;
-            ArrayList<Integer> line = candidatesTable.get(index);
-            line.sort((Integer integer, Integer t1)
-                    ->Double.compare(getCost(index, integer) + pi[integer], getCost(index, t1) + pi[t1]));
+    /**
+     * the SPARSE_DEGREE nearest neighbour graph, from a k-d tree for geometric instances
+     */
+    private SparseGraph buildSparseGraph(){
+        int stride = Math.min(SPARSE_DEGREE, dimension - 1);
+        int[] neighbours;
+        if (distance instanceof CoordinateDistance
+                && ((CoordinateDistance) distance).type != CoordinateDistance.Type.GEO){
+            CoordinateDistance coordinates = (CoordinateDistance) distance;
+            KDTree kdTree = new KDTree(coordinates.x, coordinates.y);
+            neighbours = new int[dimension * stride];
+            for (int i = 0; i < dimension; ++i){
+                kdTree.nearest(i, stride, neighbours, i * stride);
+            }
+        }else{
+            neighbours = selectNearest(stride);
         }
+        return SparseGraph.fromNeighbours(distance, neighbours, stride);
+    }
 
-        if (costMatrix.length > nearestCount) {
-            for (ArrayList<Integer> line : candidatesTable) {
-                line.subList(nearestCount, line.size()).clear();
-                line.trimToSize();
+    /**
+     * Generate the candidates of a geometric instance with a k-d tree.
+     * A pool of geometrically nearest cities (KD_POOL_FACTOR times the wanted number)
+     * is ranked by cost + pi like genNearestTable does over all the cities.
+     */
+    private void genKDTreeTable(int nearestCount){
+        CoordinateDistance coordinates = (CoordinateDistance) distance;
+        KDTree kdTree = new KDTree(coordinates.x, coordinates.y);
+        int stride = Math.min(nearestCount, dimension - 1);
+        int poolSize = Math.min(stride * KD_POOL_FACTOR, dimension - 1);
+        int quadrantCount = (stride + 3) / 4;
+        int[] table = new int[dimension * stride];
+        int[] pool = new int[poolSize];
+        int[] quadrantPool = new int[Math.min(quadrantCount * KD_POOL_FACTOR, dimension - 1)];
+
+        for (int i = 0; i < dimension; ++i){
+            int count = 0;
+            if (candidateType == CandidateType.QUADRANT){
+                for (int quadrant = 0; quadrant < 4 && count < stride; ++quadrant){
+                    int found = kdTree.nearestInQuadrant(i, quadrantPool.length, quadrant, quadrantPool, 0);
+                    sortByPiCost(i, quadrantPool, found);
+                    for (int k = 0; k < found && k < quadrantCount && count < stride; ++k){
+                        table[i * stride + count++] = quadrantPool[k];
+                    }
+                }
+            }
+            int found = kdTree.nearest(i, poolSize, pool, 0);
+            sortByPiCost(i, pool, found);
+            for (int k = 0; k < found && count < stride; ++k){
+                if (!contains(table, i * stride, i * stride + count, pool[k])){
+                    table[i * stride + count++] = pool[k];
+                }
+            }
+            if (candidateType == CandidateType.QUADRANT){
+                int[] line = Arrays.copyOfRange(table, i * stride, i * stride + stride);
+                sortByPiCost(i, line, stride);
+                System.arraycopy(line, 0, table, i * stride, stride);
             }
         }
+        setCandidatesTable(table, stride);
     }
 
-    private void genInitialTour(OneTree oneTree){
-
-        int[] tour = new int[costMatrix.length];
-        int count = 1;
+    /**
+     * Candidates once the backbone is fixed: a move only breaks and joins the ends of the fixed paths
+     * and the cities without fixed edges, so each of them gets the nearest other ones by cost + pi
+     * whatever the candidate type. The cities inside the paths keep their candidates, never looked up.
+     */
+    private void genBackboneCandidates(){
+        int ends = 0;
+        for (int v = 0; v < dimension; ++v){
+            if (fixedEdges[2 * v] < 0 || fixedEdges[2 * v + 1] < 0) ++ends;
+        }
+        int[] endCities = new int[ends];
+        ends = 0;
+        for (int v = 0; v < dimension; ++v){
+            if (fixedEdges[2 * v] < 0 || fixedEdges[2 * v + 1] < 0) endCities[ends++] = v;
+        }
+        //a path end joins a move only by the side of its free edge, about half of them fail as t3,
+        //two more candidates make up for it
+        int stride = Math.min(candidateStride + 2, Math.max(0, ends - 1));
+        int[] table = new int[dimension * stride];
+        for (int v = 0; v < dimension; ++v){
+            System.arraycopy(candidates, v * candidateStride, table, v * stride, Math.min(stride, candidateStride));
+        }
+        if (stride > 0 && distance instanceof CoordinateDistance
+                && ((CoordinateDistance) distance).type != CoordinateDistance.Type.GEO){
+            CoordinateDistance coordinates = (CoordinateDistance) distance;
+            double[] x = new double[ends];
+            double[] y = new double[ends];
+            for (int i = 0; i < ends; ++i){
+                x[i] = coordinates.x[endCities[i]];
+                y[i] = coordinates.y[endCities[i]];
+            }
+            KDTree kdTree = new KDTree(x, y);
+            int[] pool = new int[Math.min(stride * KD_POOL_FACTOR, ends - 1)];
+            for (int i = 0; i < ends; ++i){
+                int found = kdTree.nearest(i, pool.length, pool, 0);
+                for (int k = 0; k < found; ++k){
+                    pool[k] = endCities[pool[k]];
+                }
+                sortByPiCost(endCities[i], pool, found);
+                System.arraycopy(pool, 0, table, endCities[i] * stride, stride);
+            }
+        }else if (stride > 0){
+            int[] nearest = selectNearest(stride, endCities);
+            for (int i = 0; i < ends; ++i){
+                System.arraycopy(nearest, i * stride, table, endCities[i] * stride, stride);
+            }
+        }
+        setCandidatesTable(table, stride);
+    }
 
-        HashSet<Integer> reMainingNodes = new HashSet<>();
-        for (int i=0; i<costMatrix.length; ++i){
-            reMainingNodes.add(i);
+    /**
+     * insertion sort of the first len cities by cost to a + pi, ties by index
+     */
+    private void sortByPiCost(int a, int[] cities, int len){
+        for (int k = 1; k < len; ++k){
+            int c = cities[k];
+            double key = getCost(a, c) + pi[c];
+            int m = k - 1;
+            while (m >= 0){
+                double otherKey = getCost(a, cities[m]) + pi[cities[m]];
+                if (otherKey < key || otherKey == key && cities[m] < c) break;
+                cities[m + 1] = cities[m];
+                --m;
+            }
+            cities[m + 1] = c;
         }
-        tour[0] = random.nextInt(costMatrix.length);
-        reMainingNodes.remove(tour[0]);
+    }
 
-        while(count < costMatrix.length){
-            int currNode = tour[count-1];
-            int nextNode = chooseNextNodeForInit(currNode, reMainingNodes, oneTree);
-            tour[count] = nextNode;
-            reMainingNodes.remove(nextNode);
-            ++count;
+    static private boolean contains(int[] array, int from, int to, int value){
+        for (int k = from; k < to; ++k){
+            if (array[k] == value) return true;
         }
+        return false;
+    }
 
-        tree = new TwoLevelTree(tour);
-        objective = calculateObj();
+    private Tour newTour(int[] tour){
+        switch (tourType){
+            case ARRAY:
+                return new ArrayTour(tour);
+            case TWO_LEVEL:
+                return new TwoLevelTree(tour, SEGMENT_SIZE > 0 ? SEGMENT_SIZE : (int) Math.sqrt(dimension),
+                        adaptiveSegments);
+            case TWO_LEVEL_ARRAYS:
+                return new ArrayTwoLevelTree(tour);
+            case THREE_LEVEL:
+                return new ThreeLevelTree(tour);
+            default:
+                if (dimension <= ARRAY_TOUR_LIMIT) return new ArrayTour(tour);
+                return dimension > THREE_LEVEL_LIMIT ? new ThreeLevelTree(tour) : new ArrayTwoLevelTree(tour);
+        }
     }
 
-    private int chooseNextNodeForInit(int currNode, HashSet<Integer> remainings, OneTree oneTree){
-        for (int n : candidatesTable.get(currNode)){
-            if (remainings.contains(n) && oneTree.hasEdge(currNode, n) && bestTree != null && bestTree.hasEdge(n, currNode)){
-                return n;
+    public double solve(){
+        OneTree oneTree = preprocess();
+        System.out.println((isLBEstimate() ? "LB estimate (sparse 1-tree, not a bound): " : "LB: ") + LB);
+        best = new SharedBestTour(dimension);
+        backbone = null;
+        backboneRuns = 0;
+        fixedEdges = null;
+        fixedCount = 0;
+
+        int threads = Math.max(1, Math.min(RUN_THREADS, MAX_RUN_TIMES));
+        //a search is used by one run at a time and keeps its tour structure from run to run
+        Search[] searches = new Search[threads];
+        for (int i = 0; i < threads; ++i){
+            searches[i] = new Search();
+        }
+        ExecutorService executor = runExecutor != null ? runExecutor
+                : threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        final long seed = random.nextLong();
+        //the backbone replaces the candidates until the end of the solve
+        int[] allCandidates = candidates;
+        double[] allCandidateCosts = candidateCosts;
+        int allCandidateStride = candidateStride;
+        TourMerger merger = MERGE_TOURS > 0 ? new TourMerger(distance) : null;
+        //shortest run tours kept for the final merging, shortest first
+        ArrayList<SharedBestTour.Entry> elite = new ArrayList<>();
+        //the runs of the current round, cancelled when one of them fails
+        ArrayList<Future<Double>> runs = new ArrayList<>();
+        try {
+            for (int round = 0; round < MAX_RUN_TIMES; round += threads){
+                final int[] bestNext = best.get() == null ? null : best.get().next;
+                final int[] fixed = fixedEdges;
+                runs.clear();
+                for (int i = 0; i < threads && round + i < MAX_RUN_TIMES; ++i){
+                    final Search search = searches[i];
+                    final int run = round + i;
+                    if (executor == null){
+                        search.run(run, runSeed(seed, run), oneTree, bestNext, fixed);
+                    }else{
+                        runs.add(executor.submit(new Callable<Double>() {
+                            @Override
+                            public Double call() {
+                                return search.run(run, runSeed(seed, run), oneTree, bestNext, fixed);
+                            }
+                        }));
+                    }
+                }
+                for (Future<Double> future : runs){
+                    future.get();
+                }
+                //in run order so that the merging and the backbone do not depend on the scheduling either
+                for (int i = 0; i < threads && round + i < MAX_RUN_TIMES; ++i){
+                    boolean counting = BACKBONE_RUNS > 0 && fixedEdges == null;
+                    if (merger == null && !counting) break;
+                    int[] tour = new int[dimension];
+                    searches[i].tree.snapshot(tour);
+                    SharedBestTour.Entry entry = new SharedBestTour.Entry(searches[i].objective, round + i, tour);
+                    if (merger != null){
+                        mergeWithBest(entry, merger);
+                        keepShortest(elite, entry);
+                    }
+                    if (counting){
+                        addToBackbone(entry.next);
+                    }
+                }
             }
+            if (merger != null){
+                boolean improved = true;
+                while (improved){
+                    improved = false;
+                    for (SharedBestTour.Entry entry : elite){
+                        improved |= mergeWithBest(entry, merger);
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            cancel(runs);
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new Error("Run failed", e.getCause());
+        } catch (InterruptedException e) {
+            cancel(runs);
+            Thread.currentThread().interrupt();
+            throw new Error("Run interrupted", e);
+        } finally {
+            if (executor != null && executor != runExecutor) executor.shutdown();
+            candidates = allCandidates;
+            candidateCosts = allCandidateCosts;
+            candidateStride = allCandidateStride;
+        }
+
+        //no run at all when MAX_RUN_TIMES is 0
+        double bestLength = best.get() == null ? Double.MAX_VALUE : best.get().length;
+        System.out.println("Best Tour Found: " + bestLength + ". " + gapLabel() + " = " + (bestLength - LB)/LB*100 + "%");
+        return bestLength;
+    }
+
+    static private void cancel(ArrayList<Future<Double>> runs){
+        for (Future<Double> run : runs){
+            run.cancel(true);
         }
-        for (int n : candidatesTable.get(currNode)){
-            if (remainings.contains(n)){
-                return n;
+    }
+
+    /**
+     * replace the best tour by its partition crossover with the tour of entry when it is shorter
+     *
+     * @return whether the best tour got shorter
+     */
+    private boolean mergeWithBest(SharedBestTour.Entry entry, TourMerger merger){
+        SharedBestTour.Entry current = best.get();
+        int[] child = merger.merge(current.tour, entry.tour);
+        if (merger.getChildLength() >= current.length - PRECISENESS) return false;
+        System.out.println("Merged tour of run #" + entry.run + ": " + merger.getChildLength() + ", "
+                + merger.getSwappedCount() + " of " + merger.getComponentCount() + " components swapped");
+        return best.offer(new SharedBestTour.Entry(merger.getChildLength(), current.run, child));
+    }
+
+    /**
+     * keep in the backbone only its edges found in the tour too, and fix it after BACKBONE_RUNS tours
+     *
+     * @param next successor of every city in the tour
+     */
+    private void addToBackbone(int[] next){
+        if (backbone == null){
+            backbone = new int[2 * dimension];
+            for (int v = 0; v < dimension; ++v){
+                backbone[2 * v] = next[v];
+                backbone[2 * next[v] + 1] = v;
+            }
+        }else{
+            for (int k = 0; k < 2 * dimension; ++k){
+                int v = k / 2;
+                int w = backbone[k];
+                if (w >= 0 && next[v] != w && next[w] != v) backbone[k] = -1;
             }
         }
+        if (++backboneRuns < BACKBONE_RUNS) return;
+        fixedCount = 0;
+        for (int k = 0; k < 2 * dimension; ++k){
+            if (backbone[k] >= 0) ++fixedCount;
+        }
+        //every edge is seen from both of its ends
+        fixedCount /= 2;
+        fixedEdges = backbone;
+        genBackboneCandidates();
+        System.out.println("Backbone of " + backboneRuns + " runs: " + fixedCount + " of " + dimension
+                + " edges fixed");
+    }
+
+    private void keepShortest(ArrayList<SharedBestTour.Entry> elite, SharedBestTour.Entry entry){
+        int k = elite.size();
+        while (k > 0 && elite.get(k - 1).length > entry.length) --k;
+        if (k < MERGE_TOURS){
+            elite.add(k, entry);
+            if (elite.size() > MERGE_TOURS) elite.remove(elite.size() - 1);
+        }
+    }
+
+    /**
+     * @return the seed of the run-th run, fixed by the seed of the solve whatever thread makes the run
+     */
+    static private long runSeed(long seed, int run){
+        long z = seed + (run + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
 
-        int randomPick = random.nextInt(remainings.size());
-        for (int n : remainings){
-            if (--randomPick < 0)return n;
+    /**
+     * @return bytes allocated so far by the current thread, -1 when the JVM does not tell
+     */
+    static private long allocatedBytes(){
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean){
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
         }
-        throw new Error("chooseNextNodeForInit");
+        return -1;
     }
 
-    private double calculateObj(){
-        double tourCost = 0;
-        int headCityID = tree.getHeadCityID();
-        int currCityID = headCityID;
+    /**
+     * compute pi, LB and the candidates table or load them from the preprocess file
+     *
+     * @return the best 1-tree
+     */
+    private OneTree preprocess(){
+        if (preprocessFile == null){
+            OneTree oneTree = initialize();
+            genCandidatesTable(oneTree, MAX_CANDIDATES);
+            return oneTree;
+        }
+
+        try {
+            long hash = PreprocessCache.contentHash(distance);
+            long ascentKey = PreprocessCache.parametersHash(ascentParameters());
+            PreprocessCache cache = PreprocessCache.load(preprocessFile, hash, ascentKey,
+                    candidateType.ordinal(), MAX_CANDIDATES);
+            if (cache != null){
+                System.out.println("Preprocessing loaded from " + preprocessFile);
+                pi = cache.pi;
+                LB = cache.lowerBound;
+                setCandidatesTable(cache.candidates, cache.candidateStride);
+                return cache.getOneTree();
+            }
 
-        do{
-            int nextCityID = tree.next(currCityID);
-            tourCost += getCost(currCityID, nextCityID);//costMatrix[currCityID][nextCityID];
-            currCityID = nextCityID;
-        }while(currCityID != headCityID);
+            OneTree oneTree = initialize();
+            genCandidatesTable(oneTree, MAX_CANDIDATES);
 
+            int[] fathers = new int[dimension];
+            for (int i = 0; i < dimension; ++i){
+                fathers[i] = oneTree.getFather(i);
+            }
+            new PreprocessCache(hash, ascentKey, LB, pi, fathers,
+                    new int[]{oneTree.getSpecialConnection(0), oneTree.getSpecialConnection(1)},
+                    candidateType.ordinal(), candidateStride, candidates).save(preprocessFile, distance);
+            return oneTree;
+        }catch (IOException e){
+            throw new Error("Preprocess file " + preprocessFile + ": " + e.getMessage());
+        }
+    }
 
-        return tourCost;
+    /**
+     * the settings that change pi and LB, a cache made with other ones is recomputed
+     */
+    private String ascentParameters(){
+        return ascentMode + " " + SPARSE_DEGREE + " " + DENSE_CHECK_LIMIT + " " + ascentSchedule.parameters()
+                + " " + ASCENT_MAX_ITERATIONS + " " + ASCENT_TIME_LIMIT
+                + " " + STAGNATION_ITERATIONS + " " + STAGNATION_EPSILON;
     }
 
-    private void makeMove(FlipMove flipMove){
-        if (flipMove.a == tree.next(flipMove.b)) {
-            tree.flip(flipMove.a, flipMove.b, flipMove.c, flipMove.d);
-        }else{
-            tree.flip(flipMove.b, flipMove.a, flipMove.d, flipMove.c);
+    private void printLog(String string){
+        System.out.println(string);
+    }
+
+
+    private OneTree initialize(){
+        //more threads than processors only add a synchronization to every Prim step
+        int threads = Math.min(ASCENT_THREADS, Runtime.getRuntime().availableProcessors());
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        try {
+            //the chunks of a Prim step cost the same, one per thread is enough
+            ascentLoop = new ParallelLoop(pool, Math.max(MIN_PARALLEL_GRAIN, (dimension + threads - 1) / threads));
+            if (pool == null){
+                return ascent();
+            }
+            //the ascent runs in the pool so that each of its loops forks the chunks from a worker
+            return pool.submit(new Callable<OneTree>() {
+                @Override
+                public OneTree call() {
+                    return ascent();
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new Error("Ascent failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            throw new Error("Ascent interrupted");
+        } finally {
+            ascentLoop = null;
+            if (pool != null) pool.shutdown();
         }
-        objective += flipMove.deltaObj;
     }
 
-    private FlipMove evaluateMove(int a, int b, int c, int d){
-        return new FlipMove(a, b, c, d,
-                0 - getCost(a, b) - getCost(c, d) + getCost(a, d) + getCost(b,c));
+    private OneTree newAscentTree(){
+        OneTree tree = new OneTree(distance);
+        if (ascentLoop.chunks(dimension) > 1) tree.setParallelLoop(ascentLoop);
+        return tree;
     }
 
-    private double checkCalcObjective(TwoLevelTree tree){
-        int[] tour = tree.getCurrentTour();
-        double obj = 0;
-        for (int i=0; i< tour.length - 1; ++i){
-            obj += getCost(tour[i], tour[i+1]);//costMatrix[tour[i]][tour[i+1]];
+    private OneTree ascent(){
+        pi = new double[dimension];
+        double v[] = new double[dimension];
+        double vPre[] = null;
+        LB = -Double.MAX_VALUE;
+
+        //two trees reused for all the iterations, swapped when a better bound is found
+        OneTree tree = newAscentTree();
+        OneTree bestTree = newAscentTree();
+        SparseGraph graph = ascentMode == AscentMode.SPARSE ? buildSparseGraph() : null;
+        double[] bestPi = new double[dimension];
+        System.out.println("Initializing...");
+        ascentSchedule.start(dimension);
+        ascentTrace.clear();
+        long startTime = System.currentTimeMillis();
+        int iterations = 0;
+        double stagnationLB = -Double.MAX_VALUE;
+        //nodes whose pi moved, a repair of the previous 1-tree would only pay off when they are few
+        long movedSum = 0;
+        int movedMax = 0;
+        String stop = "schedule finished";
+        for (;;) {
+            double w = graph == null ? tree.compute(pi) : tree.compute(pi, graph);
+            //System.out.println(w + " " + tk + " " + iter);
+            calcV(tree, v);
+            boolean improved = Double.compare(LB,w) < 0;
+            if (improved){
+                LB = w;
+                System.arraycopy(pi, 0, bestPi, 0, dimension);
+                OneTree tmpTree = bestTree;
+                bestTree = tree;
+                tree = tmpTree;
+                ascentTrace.add(new double[]{System.currentTimeMillis() - startTime, iterations, LB});
+            }
+            if (vPre == null) vPre = Arrays.copyOf(v, v.length);
+            if (subgradientIsOpt(v)){
+                System.out.println("Optima in Initialization");
+                stop = "optimal 1-tree";
+                break;
+            }
+
+            double tk = ascentSchedule.step(w, LB, improved, v);
+            int moved = tk == 0 ? 0 : countMoved(v, vPre);
+            movedSum += moved;
+            movedMax = Math.max(movedMax, moved);
+            updatePi(pi, tk, v, vPre);
+            double[] tmp = v;
+            v = vPre;
+            vPre = tmp;
+
+            ++iterations;
+            if (ascentSchedule.isFinished()){
+                break;
+            }
+            if (ASCENT_MAX_ITERATIONS > 0 && iterations >= ASCENT_MAX_ITERATIONS){
+                stop = "iteration budget";
+                break;
+            }
+            if (ASCENT_TIME_LIMIT > 0 && System.currentTimeMillis() - startTime >= ASCENT_TIME_LIMIT){
+                stop = "time budget";
+                break;
+            }
+            if (STAGNATION_ITERATIONS > 0 && iterations % STAGNATION_ITERATIONS == 0){
+                if (LB - stagnationLB <= STAGNATION_EPSILON * Math.abs(LB)){
+                    stop = "stagnation";
+                    break;
+                }
+                stagnationLB = LB;
+            }
         }
-        obj += getCost(tour[tour.length-1], tour[0]);//costMatrix[tour[tour.length-1]][tour[0]];
+        printAscentTrace(iterations, System.currentTimeMillis() - startTime, stop);
+        System.out.println("1-trees: " + (iterations + 1) + " rebuilt, pi moved at "
+                + (iterations == 0 ? 0 : movedSum / iterations) + " nodes per iteration, at most " + movedMax
+                + " of " + dimension);
+        //the candidates and LB belong to the best tree, not to the pi of the last step
+        pi = bestPi;
+
+        //a sparse 1-tree may be longer than the minimum one, check the bound on the complete graph
+        if (graph != null && dimension <= DENSE_CHECK_LIMIT){
+            OneTree denseTree = newAscentTree();
+            double w = denseTree.compute(pi);
+            System.out.println("Sparse LB: " + LB + ", dense check: " + w);
+            LB = w;
+            bestTree = denseTree;
+        }else if (graph != null){
+            System.out.println("No dense check above " + DENSE_CHECK_LIMIT + " cities, LB is an estimate");
+        }
+        return bestTree;
+    }
 
-        return obj;
+    /**
+     * @return whether LB is the weight of a sparse 1-tree, which may exceed the minimum 1-tree
+     */
+    private boolean isLBEstimate(){
+        return ascentMode == AscentMode.SPARSE && dimension > DENSE_CHECK_LIMIT;
     }
 
-    public double solve(){
+    private String gapLabel(){
+        return isLBEstimate() ? "Estimated gap" : "Gap";
+    }
 
+    /**
+     * print the ascent summary and at most 10 points of the bound-vs-time trace
+     */
+    private void printAscentTrace(int iterations, long milliseconds, String stop){
+        System.out.println("Ascent: " + iterations + " iterations in " + milliseconds + " ms, stopped by " + stop);
+        int points = ascentTrace.size();
+        for (int k = 0; k < Math.min(points, 10); ++k){
+            double[] point = ascentTrace.get(points <= 10 ? k : (int) ((long) k * (points - 1) / 9));
+            System.out.println("  " + (long) point[0] + " ms, iteration " + (int) point[1] + ": " + point[2]);
+        }
+    }
 
-        double bestLength = Double.MAX_VALUE;
+    /**
+     * @return the number of nodes whose pi changes in updatePi
+     */
+    static private int countMoved(double[] v, double[] vPre){
+        int moved = 0;
+        for (int i = 0; i < v.length; ++i){
+            if (0.7*v[i] + 0.3*vPre[i] != 0) ++moved;
+        }
+        return moved;
+    }
 
-        OneTree oneTree = initialize();
-        System.out.println("LB: " + LB);
-        genNearestTable(MAX_CANDIDATES);
+    private void updatePi(final double[] pi, final double tk, final double[] v, final double[] vPre){
+        ascentLoop.run(0, pi.length, new ParallelLoop.Body() {
+            @Override
+            public void run(int chunk, int from, int to) {
+                for (int i=from; i<to; ++i){
+                    pi[i] += tk * (0.7*v[i] + 0.3*vPre[i]);
+                }
+            }
+        });
+    }
 
+    private boolean subgradientIsOpt(double[] v){
+        for (double vi : v){
+            if (Double.compare(vi, 0) != 0) return false;
+        }
+        return true;
+    }
+
+    private void calcV(final OneTree tree, final double[] v){
+        ascentLoop.run(0, v.length, new ParallelLoop.Body() {
+            @Override
+            public void run(int chunk, int from, int to) {
+                for (int i=from; i<to; ++i){
+                    v[i] = tree.getDegree(i) - 2;
+                }
+            }
+        });
+    }
 
-        for (int run = 0; run < MAX_RUN_TIMES; ++run) {
+    private double getCost(int i, int j){
+        return distance.getCost(i, j);
+    }
+
+    /**
+     * @return the best tour of the last solve, null when it made no run
+     */
+    public int[] getCurrentTour(){
+        SharedBestTour.Entry entry = best == null ? null : best.get();
+        return entry == null ? null : entry.tour.clone();
+    }
+
+    /**
+     * state of the runs made by one thread: the tour, its length, the don't-look bits
+     * and the edges of the move being searched. The distance, the candidates, pi and LB
+     * of the solver are only read during the runs and are shared by all the searches.
+     */
+    private class Search {
+
+        private final Random random = new Random();
+        private Tour tree;
+        private double objective;
+        //successors in the best tour of the earlier rounds, null in the first round
+        private int[] bestNext;
+        //fixed edges of the backbone, the two neighbours of every city, null when there are none
+        private int[] fixed;
+        //don't-look bits: FIFO of the cities an LK move may start from, inQueue is the negated bit
+        private int[] activeQueue;
+        private boolean[] inQueue;
+        private int queueHead;
+        private int queueSize;
+        //ends of the flips made by the move being searched, the prefix up to touchedCount is applied
+        private int[] touched = new int[64];
+        private int touchedCount;
+        //removed (xs) and added (ys) edges of the move being searched
+        private final EdgeStack xs = new EdgeStack(MAX_MOVE_LEVEL + 4);
+        private final EdgeStack ys = new EdgeStack(MAX_MOVE_LEVEL + 4);
+        //while a kick is tried: path reversals undoing the changes made since the kick, in reverse order
+        private boolean logging = false;
+        private int[] undoLog = new int[64];
+        private int undoCount;
+
+        /**
+         * improve a random initial tour until no move is found and offer it as the best tour
+         *
+         * @param bestNext successors in the best tour biasing the initial tour, null for none
+         * @param fixed edges the tour keeps, null for none
+         * @return length of the tour
+         */
+        private double run(int run, long seed, OneTree oneTree, int[] bestNext, int[] fixed){
             System.out.println("Run #" + run);
+            random.setSeed(seed);
+            this.bestNext = bestNext;
+            this.fixed = fixed;
             genInitialTour(oneTree);
+            activateAll();
             int iter = 0;
             double preObj = objective;
+            long allocated = diagnostics ? allocatedBytes() : -1;
             while (LKMove() || nonSq4Move()) {
                 ++iter;
                 if (iter %1000 == 0){
@@ -177,326 +989,611 @@ public class LKHJ {
                 }
                 preObj = objective;
             }
+            if (KICKS > 0){
+                kickAndImprove(KICKS);
+            }
+            if (allocated >= 0){
+                System.out.println("Search allocated " + (allocatedBytes() - allocated) + " bytes for "
+                        + iter + " moves");
+            }
+
+            if (diagnostics && tree instanceof TwoLevelTree){
+                System.out.println("Segments: " + ((TwoLevelTree) tree).getStatistics());
+            }
 
             //recalculate the objective
             objective = calculateObj();
 
             printObjAndGap();
+            best.offer(objective, run, tree);
+            return objective;
+        }
 
-            if (Double.compare(bestLength, objective) > 0){
-                bestLength = objective;
-                bestTree = tree;
+        private void genInitialTour(OneTree oneTree){
+
+            int[] tour = new int[dimension];
+            int count = 1;
+
+            HashSet<Integer> reMainingNodes = new HashSet<>();
+            for (int i=0; i<dimension; ++i){
+                reMainingNodes.add(i);
+            }
+            tour[0] = random.nextInt(dimension);
+            if (fixed != null){
+                //start at an end of the fixed path of the city, anywhere when the path is a cycle
+                int start = tour[0];
+                while (fixed[2 * tour[0] + 1] >= 0 && fixed[2 * tour[0] + 1] != start){
+                    tour[0] = fixed[2 * tour[0] + 1];
+                }
+            }
+            reMainingNodes.remove(tour[0]);
+
+            while(count < dimension){
+                int currNode = tour[count-1];
+                int nextNode = chooseNextNodeForInit(currNode, reMainingNodes, oneTree);
+                tour[count] = nextNode;
+                reMainingNodes.remove(nextNode);
+                ++count;
+            }
+
+            if (tree == null){
+                tree = newTour(tour);
+            }else {
+                tree.restore(tour);
             }
+            objective = calculateObj();
         }
 
-        System.out.println("Best Tour Found: " + bestLength + ". Gap = " + (bestLength - LB)/LB*100 + "%");
-        //System.out.println(checkCalcObjective(bestTree));
-        return bestLength;
-    }
+        /**
+         * a fixed path is entered at one of its ends and followed to the other one,
+         * so that the tour keeps all the fixed edges
+         */
+        private int chooseNextNodeForInit(int currNode, HashSet<Integer> remainings, OneTree oneTree){
+            if (fixed != null){
+                for (int k = 2 * currNode; k < 2 * currNode + 2; ++k){
+                    if (fixed[k] >= 0 && remainings.contains(fixed[k])){
+                        return fixed[k];
+                    }
+                }
+            }
+            final int end = (currNode + 1) * candidateStride;
+            for (int k = currNode * candidateStride; k < end; ++k){
+                int n = candidates[k];
+                if (remainings.contains(n) && isPathEnd(n) && oneTree.hasEdge(currNode, n) && bestNext != null
+                        && (bestNext[currNode] == n || bestNext[n] == currNode)){
+                    return n;
+                }
+            }
+            for (int k = currNode * candidateStride; k < end; ++k){
+                int n = candidates[k];
+                if (remainings.contains(n) && isPathEnd(n)){
+                    return n;
+                }
+            }
 
-    private boolean LKMove(){
-        int t1 = 0;
-        do{
-            if (moveFromCity(t1)){
-                return true;
+            //the first path end from a random position, wrapping around
+            int randomPick = random.nextInt(remainings.size());
+            int first = -1;
+            for (int n : remainings){
+                if (isPathEnd(n)){
+                    if (randomPick <= 0) return n;
+                    if (first < 0) first = n;
+                }
+                --randomPick;
             }
-            t1 = (t1+1) % costMatrix.length;
-        }while(t1 != 0);
-        return false;
-    }
+            if (first >= 0) return first;
+            throw new Error("chooseNextNodeForInit");
+        }
 
-    private boolean isFeasibleFlipMove(int t1, int t2, int t3, int t4){
-        return t2 != t4 && t3 != t1 && t1 != t4
-                && tree.between(t4, t2, t1) && tree.between(t1, t3, t4);
-    }
-
-    private boolean nonSq4Move(){
-        for (int t1 = 0; t1 < costMatrix.length; ++t1){
-            int t2 = tree.next(t1);
-            for (int t3 : candidatesTable.get(t2)){
-                if (t3 == t1)continue;
-                int t4 = tree.next(t3);
-                if (t4 == t1 || t4 == t2)continue;
-                double delta1 = getCost(t2, t3) + getCost(t4, t1)
-                        - getCost(t1, t2) - getCost(t3, t4);
-                if (Double.compare(delta1, 0) > 0)continue;
-                ArrayList<Integer> candidateT5 = tree.getPath(t4, t1);
-                for (int t5 : candidateT5){
-                    int t6 = tree.next(t5);
-                    for (int t7 : candidatesTable.get(t6)){
-                        if (t7 == t5 || t7 == 4 || t7 == t3 || t7 == t2 || t7 ==  t1
-                                || !tree.between(t1, t7, t3))continue;
-                        int t8 = tree.next(t7);
-                        double delta2 = getCost(t6,t7) + getCost(t8,t5)
-                                - getCost(t5, t6) - getCost(t7,t8);
-                        double delta22 = getCost(t6,t8) + getCost(t7,t5)
-                                - getCost(t5, t6) - getCost(t7,t8);
-                        if (Double.compare(delta2, delta22) <= 0) {
-                            if (Double.compare(delta1 + delta2, 0) < 0) {
-                                tree.nonSequ4Exchange(t1, t2, t3, t4, t5, t6, t7, t8);
-                                objective += delta1 + delta2;
-                                return true;
-                            }
-                        }else{
-                            if (Double.compare(delta1 + delta22, 0) < 0) {
-                                tree.nonSequ4Exchange2(t1, t2, t3, t4, t5, t6, t7, t8);
-                                objective += delta1 + delta22;
-                                return true;
-                            }
+        /**
+         * @return whether the city has less than 2 fixed edges
+         */
+        private boolean isPathEnd(int city){
+            return fixed == null || fixed[2 * city] < 0 || fixed[2 * city + 1] < 0;
+        }
+
+        private boolean isFixed(int a, int b){
+            return fixed != null && (fixed[2 * a] == b || fixed[2 * a + 1] == b);
+        }
+
+        private double calculateObj(){
+            double tourCost = 0;
+            int headCityID = tree.getHeadCityID();
+            int currCityID = headCityID;
+
+            do{
+                int nextCityID = tree.next(currCityID);
+                tourCost += getCost(currCityID, nextCityID);//costMatrix[currCityID][nextCityID];
+                currCityID = nextCityID;
+            }while(currCityID != headCityID);
+
+
+            return tourCost;
+        }
+
+        private void makeMove(int a, int b, int c, int d, double deltaObj){
+            if (touchedCount + 4 > touched.length) touched = Arrays.copyOf(touched, 2 * touched.length);
+            touched[touchedCount++] = a;
+            touched[touchedCount++] = b;
+            touched[touchedCount++] = c;
+            touched[touchedCount++] = d;
+            if (a == tree.next(b)) {
+                tree.flip(a, b, c, d);
+            }else{
+                tree.flip(b, a, d, c);
+            }
+            objective += deltaObj;
+        }
+
+        /**
+         * @return change of the tour length when (a, b) and (c, d) are replaced by (a, d) and (b, c)
+         */
+        private double flipDelta(int a, int b, int c, int d){
+            return 0 - getCost(a, b) - getCost(c, d) + getCost(a, d) + getCost(b,c);
+        }
+
+        private double checkCalcObjective(Tour tree){
+            int[] tour = tree.getCurrentTour();
+            double obj = 0;
+            for (int i=0; i< tour.length - 1; ++i){
+                obj += getCost(tour[i], tour[i+1]);//costMatrix[tour[i]][tour[i+1]];
+            }
+            obj += getCost(tour[tour.length-1], tour[0]);//costMatrix[tour[tour.length-1]][tour[0]];
+
+            return obj;
+        }
+
+        /**
+         * try the active cities in FIFO order, a city without improving move is dropped from the queue
+         * and the ends of the flips of an improving move are queued again with their tour neighbours
+         */
+        private boolean LKMove(){
+            while (queueSize > 0){
+                int t1 = activeQueue[queueHead];
+                queueHead = (queueHead + 1) % dimension;
+                --queueSize;
+                inQueue[t1] = false;
+                touchedCount = 0;
+                if (moveFromCity(t1)){
+                    activate(t1);
+                    for (int k = 0; k < touchedCount; ++k){
+                        activate(touched[k]);
+                        activate(tree.next(touched[k]));
+                        activate(tree.prev(touched[k]));
+                    }
+                    if (logging){
+                        //makeMove(a, b, c, d) leaves b c .. a d, reversing c .. a again undoes it
+                        for (int k = 0; k < touchedCount; k += 4){
+                            logReversal(touched[k + 2], touched[k + 1], touched[k], touched[k + 3]);
                         }
                     }
+                    return true;
                 }
             }
+            return false;
         }
-        return false;
-    }
-
-    private void printLog(String string){
-        System.out.println(string);
-    }
 
-    private void printObjAndGap(){
-        printLog("obj : " + (objective) + "  Gap : " + ((objective - LB)/LB * 100) + "%");
-    }
-
-    private boolean moveFromCity(final int t1){
-        ArrayList<Edge> xs = new ArrayList<>();
-        ArrayList<Edge> ys = new ArrayList<>();
-
-        int t2 = tree.prev(t1);
-        return findNextMove(t1, t2, xs, ys, 0, 2, MAX_MOVE_LEVEL, "");
-    }
-
-    private boolean tryT4IsNextT3(int t1, int t2, int t3,
-                                  ArrayList<Edge> xs,
-                                  ArrayList<Edge> ys,
-                                  double sumDelta, int level, int maxLevel, String star){
-        final int t4 = tree.next(t3);
-        if (ys.contains(new Edge(t3, t4))
-                ||
-                !isFeasibleFlipMove(t1, t2, t3, t4)) return false;
-
-        FlipMove fmv = evaluateMove(t1, t2, t3, t4);
-        if (fmv.deltaObj + sumDelta < 0 - PRECISENESS) {
-            makeMove(fmv);
-            //printLog(level + star+ "-opt move! " + tree.checkTree());
-            return true;
-        } else if (level < maxLevel){
-            makeMove(fmv);
-            xs.add(new Edge(fmv.c, fmv.d));
-            ys.add(new Edge(fmv.b, fmv.c));
-            if (fmv.a == tree.next(fmv.d)){
-                if (findNextMove(fmv.a, fmv.d,xs, ys,
-                        fmv.deltaObj + sumDelta,
-                        level + 1, maxLevel, star)){
-                    return true;
+        /**
+         * iterated LK: kick the tour with a random segment double bridge and improve it with LK moves
+         * from the ends of the kick only. The tour is kept when it got shorter, otherwise the kick
+         * and the moves are undone by path reversals, so that a rejected kick costs about as much
+         * as the moves it triggered and not O(n).
+         */
+        private void kickAndImprove(int kicks){
+            //a double bridge needs 8 distinct cities and 4 edges that are not fixed
+            if (dimension - fixedCount < 8) return;
+            int accepted = 0;
+            for (int k = 0; k < kicks; ++k){
+                double before = objective;
+                undoCount = 0;
+                logging = true;
+                kick();
+                while (LKMove()){
+                    //the moves are logged by LKMove
                 }
-            }else {
-                if (findNextMove(fmv.d, fmv.a,xs, ys,
-                        fmv.deltaObj + sumDelta,
-                        level + 1, maxLevel, star)) {
-                    return true;
+                logging = false;
+                if (objective < before - PRECISENESS){
+                    ++accepted;
+                }else{
+                    while (undoCount > 0){
+                        undoCount -= 4;
+                        reversePath(undoLog[undoCount], undoLog[undoCount + 1],
+                                undoLog[undoCount + 2], undoLog[undoCount + 3]);
+                    }
+                    objective = before;
                 }
             }
-            xs.remove(xs.size()-1);
-            ys.remove(ys.size() - 1);
-            if (fmv.a == tree.next(fmv.d) && fmv.b == tree.next(fmv.c)){
-                makeMove(new FlipMove(fmv.a, fmv.d, fmv.c, fmv.b, -fmv.deltaObj));
-            }else{
-                makeMove(new FlipMove(fmv.d, fmv.a, fmv.b, fmv.c, -fmv.deltaObj));
+            System.out.println(accepted + " of " + kicks + " kicks improved the tour");
+        }
+
+        /**
+         * double bridge on a path of at most KICK_SEGMENT edges that are not fixed from a random city:
+         * the cuts of its edges 0, p1, p2 and p3 are 2 edges apart at least
+         */
+        private void kick(){
+            int length = Math.min(KICK_SEGMENT, dimension - fixedCount - 1);
+            int range = Math.max(3, length - 4);
+            int x1 = random.nextInt(range);
+            int x2;
+            int x3;
+            do {
+                x2 = random.nextInt(range);
+            }while (x2 == x1);
+            do {
+                x3 = random.nextInt(range);
+            }while (x3 == x1 || x3 == x2);
+            int p1 = Math.min(x1, Math.min(x2, x3)) + 2;
+            int p3 = Math.max(x1, Math.max(x2, x3)) + 4;
+            int p2 = x1 + x2 + x3 - (p1 - 2) - (p3 - 4) + 3;
+
+            int t1 = random.nextInt(dimension);
+            while (isFixed(t1, tree.next(t1))){
+                t1 = tree.next(t1);
+            }
+            int t2 = tree.next(t1), t3 = 0, t4 = 0, t5 = 0, t6 = 0, t7 = 0, t8 = 0;
+            int city = t1;
+            for (int i = 1; i <= p3; ){
+                city = tree.next(city);
+                int following = tree.next(city);
+                if (isFixed(city, following)) continue;
+                if (i == p1){
+                    t7 = city;
+                    t8 = following;
+                }else if (i == p2){
+                    t3 = city;
+                    t4 = following;
+                }else if (i == p3){
+                    t5 = city;
+                    t6 = following;
+                }
+                ++i;
             }
+            tree.nonSequ4Exchange(t1, t2, t3, t4, t5, t6, t7, t8);
+            objective += getCost(t1, t4) + getCost(t5, t8) + getCost(t3, t2) + getCost(t7, t6)
+                    - getCost(t1, t2) - getCost(t3, t4) - getCost(t5, t6) - getCost(t7, t8);
+            //the tour is t1 t4 .. t5 t8 .. t3 t2 .. t7 t6, logged last to first
+            logReversal(t5, t3, t4, t6);
+            logReversal(t3, t7, t8, t5);
+            logReversal(t7, t1, t2, t3);
+            logReversal(t4, t1, t7, t6);
+            activate(t1, t2, t3, t4, t5, t6, t7, t8);
         }
-        return false;
-    }
 
-    private boolean tryT4IsPrevT3(int t1, int t2, int t3, int maxLevel){
-        final int t4 = t1 == tree.next(t2) ? tree.prev(t3) : tree.next(t3);
-        if (t4==t1 || t4==t2)return false;
-        final double x1 = getCost(t1,t2);//costMatrix[t1][t2];
-        final double y1 = getCost(t2,t3);//costMatrix[t2][t3];
-        final double x2 = getCost(t3,t4);//costMatrix[t3][t4];
-        for (int t5 : candidatesTable.get(t4)){
-            if ((t1 == tree.next(t2) && !tree.between(t3,t5,t2))
-                    ||
-                    (t2 == tree.next(t1) && !tree.between(t2,t5,t3)))continue;
-            final double y2 = getCost(t4,t5);//costMatrix[t4][t5];
-            if (Double.compare(y2,x2) > 0) continue;
-            int t6 = t1 == tree.next(t2) ? tree.prev(t5) : tree.next(t5);
-            if (t6==t3)continue;
-            double x3 = getCost(t5,t6);//costMatrix[t5][t6];
-            double y3 = getCost(t6,t1);//costMatrix[t6][t1];
-            if (Double.compare(y1+y2+y3, x1+x2+x3) < 0 - PRECISENESS){
-                makeMove(evaluateMove(t1,t2,t4,t3));
-                makeMove(evaluateMove(t4,t2,t6,t5));
-                makeMove(evaluateMove(t6,t2,t3,t1));
-                //printLog("3*-opt move! " + tree.checkTree());
-                return true;
+        private void logReversal(int x, int p, int y, int q){
+            if (undoCount + 4 > undoLog.length) undoLog = Arrays.copyOf(undoLog, 2 * undoLog.length);
+            undoLog[undoCount++] = x;
+            undoLog[undoCount++] = p;
+            undoLog[undoCount++] = y;
+            undoLog[undoCount++] = q;
+        }
+
+        /**
+         * reverse the path x .. y lying between its neighbours p and q, in either direction of the tour
+         */
+        private void reversePath(int x, int p, int y, int q){
+            if (x == y) return;
+            if (x == tree.next(p)){
+                tree.flip(x, p, y, q);
             }else{
+                tree.flip(p, x, q, y);
+            }
+        }
+
+        private void activate(int city){
+            //both edges of the city are fixed, no move can start from it
+            if (inQueue[city] || !isPathEnd(city)) return;
+            inQueue[city] = true;
+            activeQueue[(queueHead + queueSize) % dimension] = city;
+            ++queueSize;
+        }
 
-                makeMove(evaluateMove(t1, t2, t4, t3));
-                makeMove(evaluateMove(t4, t2, t6, t5));
-                makeMove(evaluateMove(t6, t2, t3, t1));
-
-                ArrayList<Edge> ys = new ArrayList<>();
-                ArrayList<Edge> xs = new ArrayList<>();
-                xs.add(new Edge(t1,t2));
-                xs.add(new Edge(t3,t4));
-                xs.add(new Edge(t5,t6));
-                ys.add(new Edge(t1,t6));
-                ys.add(new Edge(t2,t3));
-                ys.add(new Edge(t4,t5));
-                if (t1 == tree.next(t6)){
-                    if(findNextMove(t1,t6, xs, ys,
-                            y1+y2+y3-x1-x2-x3,
-                            4, maxLevel, "*")){
+        /**
+         * activate the ends of the four edges of a double bridge, no varargs array on the kick path
+         */
+        private void activate(int t1, int t2, int t3, int t4, int t5, int t6, int t7, int t8){
+            activate(t1);
+            activate(t2);
+            activate(t3);
+            activate(t4);
+            activate(t5);
+            activate(t6);
+            activate(t7);
+            activate(t8);
+        }
+
+        private void activateAll(){
+            if (activeQueue == null){
+                activeQueue = new int[dimension];
+                inQueue = new boolean[dimension];
+            }
+            queueHead = 0;
+            queueSize = 0;
+            Arrays.fill(inQueue, false);
+            for (int i = 0; i < dimension; ++i){
+                activate(i);
+            }
+        }
+
+        private boolean isFeasibleFlipMove(int t1, int t2, int t3, int t4){
+            return t2 != t4 && t3 != t1 && t1 != t4
+                    && tree.between(t4, t2, t1) && tree.between(t1, t3, t4);
+        }
+
+        /**
+         * look for an improving double bridge: the 2-opt move (t1,t2,t3,t4) splits the tour into
+         * the paths t2 .. t3 and t4 .. t1, a second one (t5,t6,t7,t8) with t5 on t4 .. t1 and t7 on
+         * t2 .. t3 joins them again. t5 is t4 or a candidate of t1, t2, t3 or t4 on t4 .. t1,
+         * so that a pair (t1, t3) costs O(candidates^2) instead of a walk along the tour.
+         */
+        private boolean nonSq4Move(){
+            for (int t1 = 0; t1 < dimension; ++t1){
+                int t2 = tree.next(t1);
+                if (isFixed(t1, t2))continue;
+                final int t3End = (t2 + 1) * candidateStride;
+                for (int k3 = t2 * candidateStride; k3 < t3End; ++k3){
+                    int t3 = candidates[k3];
+                    if (t3 == t1)continue;
+                    int t4 = tree.next(t3);
+                    if (t4 == t1 || t4 == t2 || isFixed(t3, t4))continue;
+                    double delta1 = candidateCosts[k3] + getCost(t4, t1)
+                            - getCost(t1, t2) - getCost(t3, t4);
+                    if (Double.compare(delta1, 0) > 0)continue;
+                    if (bridgeFrom(t1, t2, t3, t4, delta1, t4)
+                            || bridgeFromCandidates(t1, t2, t3, t4, delta1, t1)
+                            || bridgeFromCandidates(t1, t2, t3, t4, delta1, t2)
+                            || bridgeFromCandidates(t1, t2, t3, t4, delta1, t3)
+                            || bridgeFromCandidates(t1, t2, t3, t4, delta1, t4)){
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean bridgeFromCandidates(int t1, int t2, int t3, int t4, double delta1, int city){
+            final int end = (city + 1) * candidateStride;
+            for (int k = city * candidateStride; k < end; ++k){
+                int t5 = candidates[k];
+                if ((t5 == t4 || tree.between(t4, t5, t1)) && bridgeFrom(t1, t2, t3, t4, delta1, t5))return true;
+                //the candidate as t6
+                t5 = tree.prev(t5);
+                if ((t5 == t4 || tree.between(t4, t5, t1)) && bridgeFrom(t1, t2, t3, t4, delta1, t5))return true;
+            }
+            return false;
+        }
+
+        /**
+         * close the double bridge started by (t1,t2,t3,t4) with t5 on t4 .. t1 and its successor t6
+         */
+        private boolean bridgeFrom(int t1, int t2, int t3, int t4, double delta1, int t5){
+            int t6 = tree.next(t5);
+            //the exchange needs 8 distinct cities
+            if (t6 == t1 || isFixed(t5, t6)) return false;
+            final int t7End = (t6 + 1) * candidateStride;
+            for (int k7 = t6 * candidateStride; k7 < t7End; ++k7){
+                int t7 = candidates[k7];
+                if (t7 == t5 || t7 == t4 || t7 == t3 || t7 == t2 || t7 ==  t1
+                        || !tree.between(t1, t7, t3))continue;
+                int t8 = tree.next(t7);
+                if (t8 == t3 || isFixed(t7, t8)) continue;
+                double delta2 = candidateCosts[k7] + getCost(t8,t5)
+                        - getCost(t5, t6) - getCost(t7,t8);
+                double delta22 = getCost(t6,t8) + getCost(t7,t5)
+                        - getCost(t5, t6) - getCost(t7,t8);
+                if (Double.compare(delta2, delta22) <= 0) {
+                    if (Double.compare(delta1 + delta2, 0) < 0) {
+                        tree.nonSequ4Exchange(t1, t2, t3, t4, t5, t6, t7, t8);
+                        objective += delta1 + delta2;
+                        activate(t1, t2, t3, t4, t5, t6, t7, t8);
                         return true;
                     }
                 }else{
-                    if(findNextMove(t6,t1, xs, ys,
-                            y1+y2+y3-x1-x2-x3,
-                            4, maxLevel, "*")){
+                    if (Double.compare(delta1 + delta22, 0) < 0) {
+                        tree.nonSequ4Exchange2(t1, t2, t3, t4, t5, t6, t7, t8);
+                        objective += delta1 + delta22;
+                        activate(t1, t2, t3, t4, t5, t6, t7, t8);
                         return true;
                     }
                 }
-                makeMove(new FlipMove(t3,t2,t6,t1, x1+x2+x3-y1-y2-y3));
-                makeMove(new FlipMove(t6,t2,t4,t5,0));
-                makeMove(new FlipMove(t4,t2,t1,t3, 0));
-//                xs.subList(xs.size()-3, xs.size()).clear();
-//                ys.subList(ys.size()-3, ys.size()).clear();
             }
+            return false;
         }
 
-        return false;
-    }
+        private void printObjAndGap(){
+            printLog("obj : " + (objective) + "  " + gapLabel() + " : " + ((objective - LB)/LB * 100) + "%");
+        }
 
-    private boolean findNextMove(int t1, int t2,
-                                 ArrayList<Edge> xs,
-                                 ArrayList<Edge> ys,
-                                 double sumDelta, int level, final int maxLevel, String star){
-        final double x1 = getCost(t1, t2);//costMatrix[t1][t2];
-        for (int t3 : candidatesTable.get(t2)) {
-            if (t3 == t1 || xs.contains(new Edge(t2,t3)))continue;
-            final double y1 = getCost(t2, t3);//costMatrix[t2][t3];
-            if (Double.compare(y1,x1) > 0)continue;
-            if (tryT4IsNextT3(t1, t2, t3,xs, ys, sumDelta, level, maxLevel, star)){
-                return true;
-            }
-            if (level == 2 && tryT4IsPrevT3(t1,t2,t3,maxLevel)){
+        private boolean moveFromCity(final int t1){
+            //a successful search leaves its edges on the stacks
+            xs.popTo(0);
+            ys.popTo(0);
+            int t2 = tree.prev(t1);
+            if (findNextMove(t1, t2, 0, 2, MAX_MOVE_LEVEL, "")){
                 return true;
             }
+            //the search needs t2 before t1, so the edge to the successor is broken from the successor
+            int t0 = tree.next(t1);
+            return findNextMove(t0, t1, 0, 2, MAX_MOVE_LEVEL, "");
         }
-        return false;
-    }
 
+        private boolean tryT4IsNextT3(int t1, int t2, int t3,
+                                      double sumDelta, int level, int maxLevel, String star){
+            final int t4 = tree.next(t3);
+            if (ys.contains(t3, t4)
+                    ||
+                    isFixed(t3, t4)
+                    ||
+                    !isFeasibleFlipMove(t1, t2, t3, t4)) return false;
 
-    private OneTree initialize(){
-        pi = new double[costMatrix.length];
-        double v[] = new double[costMatrix.length];
-        double vPre[] = null;
-        LB = -Double.MAX_VALUE;
-        double tk = 2;
-        int period = costMatrix.length / 2;
-
-        int iter = 0;
-        boolean firstPeriod = true;
-        OneTree bestTree = null;
-        System.out.println("Initializing...");
-        for (;;) {
-            OneTree tree = new OneTree(costMatrix, pi);
-            double w = tree.treeLength;
-            //System.out.println(w + " " + tk + " " + iter);
-            if (Double.compare(LB,w) < 0){
-                LB = w;
-                bestTree = tree;
-                if (iter == period) period*= 2;
-            }else if (firstPeriod){
-                tk /=2;
-                firstPeriod = false;
+            final double delta = flipDelta(t1, t2, t3, t4);
+            if (delta + sumDelta < 0 - PRECISENESS) {
+                makeMove(t1, t2, t3, t4, delta);
+                //printLog(level + star+ "-opt move! " + tree.checkTree());
+                return true;
+            } else if (level < maxLevel){
+                final int mark = touchedCount;
+                makeMove(t1, t2, t3, t4, delta);
+                xs.push(t3, t4);
+                ys.push(t2, t3);
+                if (t1 == tree.next(t4)){
+                    if (findNextMove(t1, t4,
+                            delta + sumDelta,
+                            level + 1, maxLevel, star)){
+                        return true;
+                    }
+                }else {
+                    if (findNextMove(t4, t1,
+                            delta + sumDelta,
+                            level + 1, maxLevel, star)) {
+                        return true;
+                    }
+                }
+                xs.pop();
+                ys.pop();
+                if (t1 == tree.next(t4) && t2 == tree.next(t3)){
+                    makeMove(t1, t4, t3, t2, -delta);
+                }else{
+                    makeMove(t4, t1, t2, t3, -delta);
+                }
+                touchedCount = mark;
             }
-            calcV(tree, v);
-            if (vPre == null) vPre = Arrays.copyOf(v, v.length);
-            if (subgradientIsOpt(v)){
-                System.out.println("Optima in Initialization");
-                break;
+            return false;
+        }
+
+        private boolean tryT4IsPrevT3(int t1, int t2, int t3, int maxLevel){
+            final int t4 = t1 == tree.next(t2) ? tree.prev(t3) : tree.next(t3);
+            if (t4==t1 || t4==t2 || isFixed(t3,t4))return false;
+            final double x1 = getCost(t1,t2);//costMatrix[t1][t2];
+            final double y1 = getCost(t2,t3);//costMatrix[t2][t3];
+            final double x2 = getCost(t3,t4);//costMatrix[t3][t4];
+            final int t5End = (t4 + 1) * candidateStride;
+            for (int k5 = t4 * candidateStride; k5 < t5End; ++k5){
+                final int t5 = candidates[k5];
+                if ((t1 == tree.next(t2) && !tree.between(t3,t5,t2))
+                        ||
+                        (t2 == tree.next(t1) && !tree.between(t2,t5,t3)))continue;
+                final double y2 = candidateCosts[k5];
+                if (Double.compare(y2,x2) > 0) continue;
+                int t6 = t1 == tree.next(t2) ? tree.prev(t5) : tree.next(t5);
+                if (t6==t3 || isFixed(t5,t6))continue;
+                double x3 = getCost(t5,t6);//costMatrix[t5][t6];
+                double y3 = getCost(t6,t1);//costMatrix[t6][t1];
+                if (Double.compare(y1+y2+y3, x1+x2+x3) < 0 - PRECISENESS){
+                    makeMove(t1, t2, t4, t3, flipDelta(t1, t2, t4, t3));
+                    makeMove(t4, t2, t6, t5, flipDelta(t4, t2, t6, t5));
+                    makeMove(t6, t2, t3, t1, flipDelta(t6, t2, t3, t1));
+                    //printLog("3*-opt move! " + tree.checkTree());
+                    return true;
+                }else{
+                    final int mark = touchedCount;
+                    makeMove(t1, t2, t4, t3, flipDelta(t1, t2, t4, t3));
+                    makeMove(t4, t2, t6, t5, flipDelta(t4, t2, t6, t5));
+                    makeMove(t6, t2, t3, t1, flipDelta(t6, t2, t3, t1));
+
+                    //the stacks are empty at level 2
+                    xs.push(t1,t2);
+                    xs.push(t3,t4);
+                    xs.push(t5,t6);
+                    ys.push(t1,t6);
+                    ys.push(t2,t3);
+                    ys.push(t4,t5);
+                    if (t1 == tree.next(t6)){
+                        if(findNextMove(t1,t6,
+                                y1+y2+y3-x1-x2-x3,
+                                4, maxLevel, "*")){
+                            return true;
+                        }
+                    }else{
+                        if(findNextMove(t6,t1,
+                                y1+y2+y3-x1-x2-x3,
+                                4, maxLevel, "*")){
+                            return true;
+                        }
+                    }
+                    xs.popTo(0);
+                    ys.popTo(0);
+                    makeMove(t3,t2,t6,t1, x1+x2+x3-y1-y2-y3);
+                    makeMove(t6,t2,t4,t5,0);
+                    makeMove(t4,t2,t1,t3, 0);
+                    touchedCount = mark;
+                }
             }
 
-            updatePi(pi, tk, v, vPre);
-            double[] tmp = v;
-            v = vPre;
-            vPre = tmp;
+            return false;
+        }
 
-            ++iter;
-            if (iter == period){
-                iter = 0;
-                period /= 2;
-                tk /= 2;
-                //firstPeriod = true;
-                if (period == 0 || tk < 0.000001){
-                    break;
+        private boolean findNextMove(int t1, int t2,
+                                     double sumDelta, int level, final int maxLevel, String star){
+            if (isFixed(t1, t2)) return false;
+            final double x1 = getCost(t1, t2);//costMatrix[t1][t2];
+            final int t3End = (t2 + 1) * candidateStride;
+            for (int k3 = t2 * candidateStride; k3 < t3End; ++k3) {
+                final int t3 = candidates[k3];
+                if (t3 == t1 || xs.contains(t2,t3))continue;
+                final double y1 = candidateCosts[k3];
+                if (Double.compare(y1,x1) > 0)continue;
+                if (tryT4IsNextT3(t1, t2, t3, sumDelta, level, maxLevel, star)){
+                    return true;
+                }
+                if (level == 2 && tryT4IsPrevT3(t1,t2,t3,maxLevel)){
+                    return true;
                 }
             }
+            return false;
         }
-        return bestTree;
+
     }
 
-    private void updatePi(double[] pi, double tk, double[] v, double[] vPre){
-        for (int i=0; i<pi.length; ++i){
-            pi[i] += tk * (0.7*v[i] + 0.3*vPre[i]);
+    /**
+     * stack of edges with an O(1) membership test: the edges live in an open addressing table
+     * and only the last pushed edge is removed, so emptying its slot never cuts the probe
+     * sequence of an edge still in the table
+     */
+    static private class EdgeStack {
+        static private final long EMPTY = -1;
+        private final long[] table;
+        private final int mask;
+        private final int[] slots; //slot of every pushed edge, in push order
+        private int size = 0;
+
+        EdgeStack(int capacity){
+            table = new long[Integer.highestOneBit(Math.max(4 * capacity, 4) - 1) << 1];
+            Arrays.fill(table, EMPTY);
+            mask = table.length - 1;
+            slots = new int[capacity];
         }
-    }
 
-    private boolean subgradientIsOpt(double[] v){
-        for (double vi : v){
-            if (Double.compare(vi, 0) != 0) return false;
+        void push(int a, int b){
+            long key = key(a, b);
+            int i = hash(key) & mask;
+            while (table[i] != EMPTY) i = (i + 1) & mask;
+            table[i] = key;
+            slots[size++] = i;
         }
-        return true;
-    }
 
-    private void calcV(OneTree tree, double[] v){
-        for (int i=0; i<v.length; ++i){
-            v[i] = tree.getDegree(i) - 2;
+        void pop(){
+            table[slots[--size]] = EMPTY;
         }
-    }
 
-    private double getCost(int i, int j){
-        return i > j ? costMatrix[i][j] : costMatrix[j][i];
-    }
+        void popTo(int newSize){
+            while (size > newSize) pop();
+        }
 
-    public int[] getCurrentTour(){
-        return bestTree.getCurrentTour();
-    }
+        boolean contains(int a, int b){
+            long key = key(a, b);
+            for (int i = hash(key) & mask; table[i] != EMPTY; i = (i + 1) & mask){
+                if (table[i] == key) return true;
+            }
+            return false;
+        }
 
-    private class Edge{
-        int s;
-        int d;
-        Edge(int s, int d){
-            this.s = s;
-            this.d = d;
+        static private long key(int a, int b){
+            return a < b ? (long) a << 32 | b : (long) b << 32 | a;
         }
 
-        @Override
-        public boolean equals(Object o){
-            if (o==null) return false;
-            if (!Edge.class.isAssignableFrom(o.getClass())) return false;
-            Edge ep = (Edge) o;
-            return this.s == ep.s && this.d == ep.d
-                    ||
-                    this.s == ep.d && this.d == ep.s;
-        }
-    }
-
-    private class FlipMove {
-        final int a;
-        final int b;
-        final int c;
-        final int d;
-        final double deltaObj;
-        FlipMove(int a, int b, int c, int d, double deltaObj){
-            this.a = a;
-            this.b = b;
-            this.c = c;
-            this.d = d;
-            this.deltaObj = deltaObj;
+        static private int hash(long key){
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h >>> 32);
         }
     }
 }
@@ -0,0 +1,392 @@
+package lkhj;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * TSPLIB reader working directly on a memory mapped file.
+ * The bytes are scanned into primitive arrays,
+ * no String is created for the coordinate lines.
+ */
+public class MappedInstanceReader {
+
+    static private final byte[] DIMENSION = bytes("DIMENSION");
+    static private final byte[] EDGE_WEIGHT_TYPE = bytes("EDGE_WEIGHT_TYPE");
+    static private final byte[] EDGE_WEIGHT_FORMAT = bytes("EDGE_WEIGHT_FORMAT");
+    static private final byte[] NODE_COORD_SECTION = bytes("NODE_COORD_SECTION");
+    static private final byte[] EDGE_WEIGHT_SECTION = bytes("EDGE_WEIGHT_SECTION");
+    static private final byte[] DISPLAY_DATA_SECTION = bytes("DISPLAY_DATA_SECTION");
+    static private final byte[] EOF = bytes("EOF");
+    static private final byte[] EXPLICIT = bytes("EXPLICIT");
+
+    /**
+     * EDGE_WEIGHT_FORMAT of an explicit instance.
+     * The column-wise formats of a symmetric matrix list the values
+     * in the same order as the opposite row-wise formats.
+     */
+    private enum WeightFormat {
+        FULL_MATRIX, UPPER_ROW, LOWER_ROW, UPPER_DIAG_ROW, LOWER_DIAG_ROW,
+        UPPER_COL, LOWER_COL, UPPER_DIAG_COL, LOWER_DIAG_COL;
+
+        WeightFormat rowWise() {
+            switch (this) {
+                case UPPER_COL:
+                    return LOWER_ROW;
+                case LOWER_COL:
+                    return UPPER_ROW;
+                case UPPER_DIAG_COL:
+                    return LOWER_DIAG_ROW;
+                case LOWER_DIAG_COL:
+                    return UPPER_DIAG_ROW;
+                default:
+                    return this;
+            }
+        }
+    }
+
+    static private final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private final MappedByteBuffer buffer;
+    private final int limit;
+    private int pos = 0;
+
+    private MappedInstanceReader(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+    }
+
+    static public DistanceFunction ReadTSPInstance(String file) throws IOException {
+        return ReadTSPInstance(file, PackedTriangularMatrix.Storage.HEAP, null);
+    }
+
+    /**
+     * @param storage    where the weights of an EXPLICIT instance are kept
+     * @param mappedFile backing file when storage is MAPPED
+     */
+    static public DistanceFunction ReadTSPInstance(String file, PackedTriangularMatrix.Storage storage,
+                                                   String mappedFile) throws IOException {
+        long startTime = System.nanoTime();
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new Error("Instance file larger than 2GB: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        DistanceFunction distance = new MappedInstanceReader(buffer).parse(storage, mappedFile);
+
+        double seconds = (System.nanoTime() - startTime) / 1.0e9;
+        double megaBytes = buffer.limit() / (1024.0 * 1024.0);
+        System.out.println("Parsed " + file + " (" + String.format("%.2f", megaBytes) + " MB) in "
+                + String.format("%.3f", seconds) + " s: "
+                + String.format("%.1f", megaBytes / seconds) + " MB/s");
+        return distance;
+    }
+
+    private DistanceFunction parse(PackedTriangularMatrix.Storage storage, String mappedFile) throws IOException {
+        int dimension = -1;
+        CoordinateDistance.Type coordinateType = null;
+        boolean isExplicit = false;
+        WeightFormat format = null;
+
+        //header, one "KEY : VALUE" or "KEY: VALUE" per line
+        for (; ; ) {
+            skipWhiteSpaces();
+            if (pos >= limit) {
+                throw new Error("Unexpected end of file in header");
+            }
+            int keyBegin = pos;
+            while (pos < limit && buffer.get(pos) != ':' && !isSpace(buffer.get(pos))
+                    && !isNewLine(buffer.get(pos))) {
+                ++pos;
+            }
+            int keyEnd = pos;
+
+            if (matches(keyBegin, keyEnd, NODE_COORD_SECTION)) {
+                skipLine();
+                if (isExplicit) {
+                    //only display purpose, the weights come in their own section
+                    skipLines(dimension);
+                    continue;
+                }
+                if (coordinateType == null) {
+                    throw new Error("Unsupported EDGE_WEIGHT_TYPE");
+                }
+                return readCoordinates(dimension, coordinateType);
+            } else if (matches(keyBegin, keyEnd, EDGE_WEIGHT_SECTION)) {
+                skipLine();
+                if (format == null) {
+                    throw new Error("EDGE_WEIGHT_FORMAT is missing");
+                }
+                return readWeights(dimension, format.rowWise(), storage, mappedFile);
+            } else if (matches(keyBegin, keyEnd, DISPLAY_DATA_SECTION)) {
+                skipLine();
+                skipLines(dimension);
+                continue;
+            } else if (matches(keyBegin, keyEnd, EOF)) {
+                throw new Error("No NODE_COORD_SECTION or EDGE_WEIGHT_SECTION found");
+            }
+
+            skipSpaces();
+            if (pos < limit && buffer.get(pos) == ':') ++pos;
+            skipSpaces();
+
+            if (matches(keyBegin, keyEnd, DIMENSION)) {
+                dimension = (int) readLong();
+            } else if (matches(keyBegin, keyEnd, EDGE_WEIGHT_TYPE)) {
+                int valueBegin = readWord();
+                isExplicit = matches(valueBegin, pos, EXPLICIT);
+                coordinateType = null;
+                for (CoordinateDistance.Type type : CoordinateDistance.Type.values()) {
+                    if (matches(valueBegin, pos, type.name())) {
+                        coordinateType = type;
+                    }
+                }
+            } else if (matches(keyBegin, keyEnd, EDGE_WEIGHT_FORMAT)) {
+                int valueBegin = readWord();
+                for (WeightFormat weightFormat : WeightFormat.values()) {
+                    if (matches(valueBegin, pos, weightFormat.name())) {
+                        format = weightFormat;
+                    }
+                }
+            }
+            skipLine();
+        }
+    }
+
+    private DistanceFunction readCoordinates(int dimension, CoordinateDistance.Type type) {
+        if (dimension < 0) {
+            throw new Error("DIMENSION is missing");
+        }
+        double[] x = new double[dimension];
+        double[] y = new double[dimension];
+        for (int count = 0; count < dimension; ++count) {
+            readLong(); //node id
+            x[count] = readDouble();
+            y[count] = readDouble();
+        }
+        return new CoordinateDistance(x, y, type);
+    }
+
+    /**
+     * Read the EDGE_WEIGHT_SECTION in two streaming passes over the mapped bytes.
+     * The first pass finds the weight range to choose the stored type,
+     * the second one writes every value straight into the packed triangle.
+     */
+    private DistanceFunction readWeights(int dimension, WeightFormat format,
+                                         PackedTriangularMatrix.Storage storage,
+                                         String mappedFile) throws IOException {
+        if (dimension < 0) {
+            throw new Error("DIMENSION is missing");
+        }
+        int sectionBegin = pos;
+        long valueNum = format == WeightFormat.FULL_MATRIX ? (long) dimension * dimension
+                : format == WeightFormat.UPPER_ROW || format == WeightFormat.LOWER_ROW ?
+                PackedTriangularMatrix.size(dimension)
+                : PackedTriangularMatrix.size(dimension) + dimension;
+
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        boolean integral = true;
+        for (long k = 0; k < valueNum; ++k) {
+            double value = readDouble();
+            if (value < min) min = value;
+            if (value > max) max = value;
+            if (integral && value != Math.rint(value)) integral = false;
+        }
+
+        PackedTriangularMatrix matrix = new PackedTriangularMatrix(dimension,
+                PackedTriangularMatrix.WeightType.forRange(min, max, integral), storage, mappedFile);
+
+        pos = sectionBegin;
+        switch (format) {
+            case FULL_MATRIX:
+                for (int i = 0; i < dimension; ++i) {
+                    for (int j = 0; j < dimension; ++j) {
+                        double value = readDouble();
+                        if (j < i) matrix.setCost(i, j, value);
+                    }
+                }
+                break;
+            case UPPER_ROW:
+                for (int i = 0; i < dimension; ++i) {
+                    for (int j = i + 1; j < dimension; ++j) {
+                        matrix.setCost(i, j, readDouble());
+                    }
+                }
+                break;
+            case LOWER_ROW:
+                for (int i = 0; i < dimension; ++i) {
+                    for (int j = 0; j < i; ++j) {
+                        matrix.setCost(i, j, readDouble());
+                    }
+                }
+                break;
+            case UPPER_DIAG_ROW:
+                for (int i = 0; i < dimension; ++i) {
+                    for (int j = i; j < dimension; ++j) {
+                        matrix.setCost(i, j, readDouble());
+                    }
+                }
+                break;
+            default:
+                for (int i = 0; i < dimension; ++i) {
+                    for (int j = 0; j <= i; ++j) {
+                        matrix.setCost(i, j, readDouble());
+                    }
+                }
+        }
+        return matrix;
+    }
+
+    static private byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static private boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    static private boolean isNewLine(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    private boolean matches(int begin, int end, String keyword) {
+        if (end - begin != keyword.length()) return false;
+        for (int i = 0; i < keyword.length(); ++i) {
+            if (buffer.get(begin + i) != keyword.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private boolean matches(int begin, int end, byte[] keyword) {
+        if (end - begin != keyword.length) return false;
+        for (int i = 0; i < keyword.length; ++i) {
+            if (buffer.get(begin + i) != keyword[i]) return false;
+        }
+        return true;
+    }
+
+    private void skipSpaces() {
+        while (pos < limit && isSpace(buffer.get(pos))) ++pos;
+    }
+
+    private void skipWhiteSpaces() {
+        while (pos < limit && (isSpace(buffer.get(pos)) || isNewLine(buffer.get(pos)))) ++pos;
+    }
+
+    /**
+     * skip the next word
+     *
+     * @return position of the first byte of the word
+     */
+    private int readWord() {
+        int begin = pos;
+        while (pos < limit && !isSpace(buffer.get(pos)) && !isNewLine(buffer.get(pos))) ++pos;
+        return begin;
+    }
+
+    private void skipLines(int num) {
+        for (int i = 0; i < num; ++i) {
+            skipLine();
+        }
+    }
+
+    private void skipLine() {
+        while (pos < limit && !isNewLine(buffer.get(pos))) ++pos;
+        skipWhiteSpaces();
+    }
+
+    private long readLong() {
+        skipWhiteSpaces();
+        boolean negative = false;
+        if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+            negative = buffer.get(pos) == '-';
+            ++pos;
+        }
+        int begin = pos;
+        long value = 0;
+        byte b;
+        while (pos < limit && (b = buffer.get(pos)) >= '0' && b <= '9') {
+            value = value * 10 + (b - '0');
+            ++pos;
+        }
+        if (pos == begin) {
+            throw new Error("Number expected at byte " + pos);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * read a decimal number like "-12.5e3".
+     * mantissas up to 18 digits with small exponents are computed exactly,
+     * anything else falls back to Double.parseDouble
+     */
+    private double readDouble() {
+        skipWhiteSpaces();
+        int begin = pos;
+        boolean negative = false;
+        if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+            negative = buffer.get(pos) == '-';
+            ++pos;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        byte b;
+        while (pos < limit && (b = buffer.get(pos)) >= '0' && b <= '9') {
+            mantissa = mantissa * 10 + (b - '0');
+            if (mantissa != 0) ++digits;
+            ++pos;
+        }
+        if (pos < limit && buffer.get(pos) == '.') {
+            ++pos;
+            while (pos < limit && (b = buffer.get(pos)) >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa != 0) ++digits;
+                --exponent;
+                ++pos;
+            }
+        }
+        if (pos < limit && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E')) {
+            ++pos;
+            exponent += (int) readSignedExponent();
+        }
+        if (pos == begin) {
+            throw new Error("Number expected at byte " + pos);
+        }
+
+        if (digits > 18 || mantissa >= (1L << 53) || exponent < -22 || exponent > 22) {
+            byte[] text = new byte[pos - begin];
+            for (int i = 0; i < text.length; ++i) {
+                text[i] = buffer.get(begin + i);
+            }
+            return Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+        }
+
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    private long readSignedExponent() {
+        boolean negative = false;
+        if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+            negative = buffer.get(pos) == '-';
+            ++pos;
+        }
+        long value = 0;
+        byte b;
+        while (pos < limit && (b = buffer.get(pos)) >= '0' && b <= '9') {
+            value = value * 10 + (b - '0');
+            ++pos;
+        }
+        return negative ? -value : value;
+    }
+}
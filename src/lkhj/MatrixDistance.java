@@ -0,0 +1,24 @@
+package lkhj;
+
+/**
+ * Adapter for a cost matrix given as a lower triangular double[][]
+ * (mat[i][j] with i > j), a full square matrix works as well.
+ */
+public class MatrixDistance implements DistanceFunction {
+
+    private double[][] costMatrix;
+
+    public MatrixDistance(double[][] costMatrix) {
+        this.costMatrix = costMatrix;
+    }
+
+    @Override
+    public int getDimension() {
+        return costMatrix.length;
+    }
+
+    @Override
+    public double getCost(int i, int j) {
+        return i > j ? costMatrix[i][j] : costMatrix[j][i];
+    }
+}
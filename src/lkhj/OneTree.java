@@ -1,49 +1,198 @@
 package lkhj;
 
 
-import org.jgrapht.util.FibonacciHeap;
-import org.jgrapht.util.FibonacciHeapNode;
-
-import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
+ * Minimum 1-tree under the pi transformation c(i, j) + pi[i] + pi[j].
+ * The spanning tree is found by an O(n^2) array Prim, which is optimal for a complete graph,
+ * or by a heap Prim in O(m log n) when restricted to a sparse graph,
+ * plus a special edge from a leaf to its nearest node other than its father.
+ * All the data lives in primitive arrays that are reused by every compute().
+ * With a ParallelLoop the dense Prim, the nearest node search and the special leaf search
+ * are split in chunks whose results are combined in index order, giving the same tree.
  * Created by xinyun on 19/07/17.
  */
 class OneTree {
 
     double treeLength;
-    private double[][] costMatrix;
-    private double[] pi;
-    private TreeNode[] treeNodes;
+    private DistanceFunction distance;
+    private int dimension;
+    private int[] fathers;
+    private int[] degrees;
+    private int[] order; //nodes in the order Prim added them, fathers first
     private int[] specialConnections = new int[2];
     private int root = -1; //index of root
 
-    OneTree(double[][] costMatrix, double[] pi){
-        this.costMatrix = costMatrix;
-        treeNodes = new TreeNode[costMatrix.length];
-        this.pi = pi;
-        treeLength = getTreeLength();
+    //Prim working arrays
+    private double[] C;
+    private boolean[] isInQ;
+    private int[] heap;
+    private int[] heapPos;
+    private int heapSize;
+
+    //the two nearest nodes of every node, pi does not change them so they are computed once
+    private int[] nearest;
+    private int[] secondNearest;
+    private double[] nearestCost;
+    private double[] secondNearestCost;
+    private boolean nearestKnown = false;
+
+    //parallel dense Prim: the node added last and the best node of every chunk
+    private ParallelLoop loop;
+    private ParallelLoop.Body relaxBody;
+    private ParallelLoop.Body leafBody;
+    private double[] primPi;
+    private int primV;
+    private int[] chunkNode;
+    private double[] chunkCost;
+
+    OneTree(DistanceFunction distance){
+        this.distance = distance;
+        dimension = distance.getDimension();
+        fathers = new int[dimension];
+        degrees = new int[dimension];
+        order = new int[dimension];
+        C = new double[dimension];
+        isInQ = new boolean[dimension];
+        nearest = new int[dimension];
+        secondNearest = new int[dimension];
+        nearestCost = new double[dimension];
+        secondNearestCost = new double[dimension];
+    }
+
+    OneTree(DistanceFunction distance, double[] pi){
+        this(distance);
+        compute(pi);
+    }
+
+    /**
+     * run the dense computations of this tree on a parallel loop
+     */
+    void setParallelLoop(ParallelLoop loop){
+        this.loop = loop;
+        int chunks = loop.chunks(dimension);
+        chunkNode = new int[chunks];
+        chunkCost = new double[chunks];
+        relaxBody = new ParallelLoop.Body() {
+            @Override
+            public void run(int chunk, int from, int to) {
+                relaxChunk(chunk, from, to);
+            }
+        };
+        leafBody = new ParallelLoop.Body() {
+            @Override
+            public void run(int chunk, int from, int to) {
+                leafChunk(chunk, from, to);
+            }
+        };
+    }
+
+    /**
+     * rebuild a 1-tree from its edges
+     *
+     * @param fathers             father of each node in the spanning tree, -1 for the root
+     * @param specialConnections  the two ends of the special edge
+     * @param treeLength          length of the 1-tree
+     */
+    OneTree(int[] fathers, int[] specialConnections, double treeLength){
+        dimension = fathers.length;
+        this.fathers = Arrays.copyOf(fathers, dimension);
+        degrees = new int[dimension];
+        order = new int[dimension];
+        this.specialConnections[0] = specialConnections[0];
+        this.specialConnections[1] = specialConnections[1];
+        this.treeLength = treeLength;
+
+        //breadth first order through the children packed by father
+        int[] childStart = new int[dimension + 1];
+        for (int i = 0; i < dimension; ++i){
+            if (fathers[i] < 0){
+                root = i;
+            }else{
+                ++childStart[fathers[i] + 1];
+            }
+        }
+        for (int i = 0; i < dimension; ++i){
+            childStart[i + 1] += childStart[i];
+        }
+        int[] fill = Arrays.copyOf(childStart, dimension);
+        int[] children = new int[Math.max(dimension - 1, 0)];
+        for (int i = 0; i < dimension; ++i){
+            if (fathers[i] >= 0){
+                children[fill[fathers[i]]++] = i;
+            }
+        }
+        int head = 0;
+        int tail = 0;
+        order[tail++] = root;
+        while (head < tail){
+            int father = order[head++];
+            for (int k = childStart[father]; k < childStart[father + 1]; ++k){
+                order[tail++] = children[k];
+            }
+        }
+        computeDegrees();
     }
 
-    private double getTreeLength(){
-        double spinningTreeLength = findSpinningTree();
+    /**
+     * compute the minimum 1-tree for a pi vector, reusing the arrays of this object
+     *
+     * @return length of the 1-tree
+     */
+    double compute(double[] pi){
+        double spinningTreeLength = findSpinningTree(pi);
+        nearestKnown = true;
+        return addSpecialEdge(spinningTreeLength, pi);
+    }
+
+    /**
+     * compute the minimum 1-tree using only the edges of a sparse graph,
+     * the complete graph is used when the sparse graph is not connected.
+     * The result is an upper bound of the true minimum 1-tree length.
+     *
+     * @return length of the 1-tree
+     */
+    double compute(double[] pi, SparseGraph graph){
+        if (!nearestKnown){
+            collectNearest(graph);
+        }
+        double spinningTreeLength = findSparseSpinningTree(pi, graph);
+        if (Double.isNaN(spinningTreeLength)){
+            spinningTreeLength = findSpinningTree(pi);
+        }
+        return addSpecialEdge(spinningTreeLength, pi);
+    }
 
+    private double addSpecialEdge(double spinningTreeLength, double[] pi){
         double maxSpecial = -Double.MAX_VALUE;
-        for (TreeNode tn : treeNodes){
-            if (!tn.children.isEmpty())continue;
-            double minDistance = Double.MAX_VALUE;
-            int nearestNode = -1;
-            for (int n = 0; n < costMatrix.length; ++n){
-                if (n != tn.father.data && n != tn.data && getCost(tn.data, n) < minDistance){
-                    minDistance = getCost(tn.data, n);//costMatrix[tn.data][n];
-                    nearestNode = n;
+        //count the children first to find the leaves
+        Arrays.fill(degrees, 0);
+        for (int i = 0; i < dimension; ++i){
+            if (fathers[i] >= 0) ++degrees[fathers[i]];
+        }
+        if (loop != null){
+            loop.run(0, dimension, leafBody);
+            int leaf = -1;
+            for (int c = 0; c < chunkNode.length; ++c){
+                if (chunkNode[c] >= 0 && (leaf < 0 || chunkCost[c] > maxSpecial)){
+                    leaf = chunkNode[c];
+                    maxSpecial = chunkCost[c];
                 }
             }
-            if(minDistance > maxSpecial){
-                maxSpecial = minDistance;
-                specialConnections[0] = tn.data;
-                specialConnections[1] = nearestNode;
+            specialConnections[0] = leaf;
+            specialConnections[1] = nearest[leaf] == fathers[leaf] ? secondNearest[leaf] : nearest[leaf];
+        }else{
+            for (int i = 0; i < dimension; ++i){
+                //leaves have no child
+                if (fathers[i] < 0 || degrees[i] != 0) continue;
+                boolean nearestIsFather = nearest[i] == fathers[i];
+                double minDistance = nearestIsFather ? secondNearestCost[i] : nearestCost[i];
+                if (minDistance > maxSpecial){
+                    maxSpecial = minDistance;
+                    specialConnections[0] = i;
+                    specialConnections[1] = nearestIsFather ? secondNearest[i] : nearest[i];
+                }
             }
         }
 
@@ -52,88 +201,313 @@ class OneTree {
         for (double pii : pi){
             treeLength -= 2 * pii;
         }
+        computeDegrees();
         return treeLength;
     }
 
-    private double findSpinningTree(){
-        double[] C = new double[costMatrix.length];
+    /**
+     * the leaf of the chunk whose nearest node other than its father is the farthest, first one on ties
+     */
+    private void leafChunk(int chunk, int from, int to){
+        int leaf = -1;
+        double maxSpecial = -Double.MAX_VALUE;
+        for (int i = from; i < to; ++i){
+            if (fathers[i] < 0 || degrees[i] != 0) continue;
+            double minDistance = nearest[i] == fathers[i] ? secondNearestCost[i] : nearestCost[i];
+            if (minDistance > maxSpecial){
+                maxSpecial = minDistance;
+                leaf = i;
+            }
+        }
+        chunkNode[chunk] = leaf;
+        chunkCost[chunk] = maxSpecial;
+    }
+
+    private double findSpinningTree(double[] pi){
+        if (loop != null && loop.chunks(dimension) > 1){
+            return findSpinningTreeParallel(pi);
+        }
         Arrays.fill(C, Double.MAX_VALUE);
-        int[] E = new int[costMatrix.length];
-        Arrays.fill(E, -1);
-        FibonacciHeap<Integer> Q = new FibonacciHeap<>();
-        ArrayList<FibonacciHeapNode<Integer>> fbNodes = new ArrayList<>();
-        for (int i=0; i< costMatrix.length; ++i){
-            FibonacciHeapNode<Integer> node = new FibonacciHeapNode<>(i);
-            Q.insert(node, C[i]);
-            fbNodes.add(node);
-        }
-        boolean[] isInQ = new boolean[costMatrix.length];
+        Arrays.fill(fathers, -1);
         Arrays.fill(isInQ, true);
-        //isInQ[0] = false;
+        if (!nearestKnown){
+            Arrays.fill(nearest, -1);
+            Arrays.fill(secondNearest, -1);
+            Arrays.fill(nearestCost, Double.MAX_VALUE);
+            Arrays.fill(secondNearestCost, Double.MAX_VALUE);
+        }
 
         double spinningTreeLength = 0;
-
-        while(!Q.isEmpty()){
-            int v = Q.removeMin().getData();
+        int v = 0;
+        for (int step = 0; step < dimension; ++step){
             isInQ[v] = false;
-            TreeNode vFather = E[v] > -1 ? treeNodes[E[v]] : null;
-            if (vFather == null){
+            order[step] = v;
+            if (fathers[v] < 0){
                 root = v;
-                treeNodes[v] = new TreeNode(v, null);
             }else {
                 spinningTreeLength += C[v];
-                treeNodes[v] = vFather.addChild(v);
             }
 
-
-            for (int w=0; w<costMatrix.length; ++w){
-                if (w == v || !isInQ[w])continue;
-                double edgeLength = getCost(v, w) + pi[v] + pi[w];
+            int nextV = -1;
+            double nextC = Double.MAX_VALUE;
+            for (int w=0; w<dimension; ++w){
+                if (!isInQ[w])continue;
+                double cost = distance.getCost(v, w);
+                if (!nearestKnown){
+                    offerNearest(v, w, cost);
+                    offerNearest(w, v, cost);
+                }
+                double edgeLength = cost + pi[v] + pi[w];
                 if (edgeLength < C[w]){
                     C[w] = edgeLength;
-                    Q.decreaseKey(fbNodes.get(w), C[w]);
-                    E[w] = v;
+                    fathers[w] = v;
+                }
+                if (nextV < 0 || C[w] < nextC){
+                    nextC = C[w];
+                    nextV = w;
                 }
             }
+            v = nextV;
         }
 
         return spinningTreeLength;
     }
 
-    int getDegree(int i){
-        return treeNodes[i].children.size() + (treeNodes[i].father != null ? 1 : 0)
-                + (specialConnections[0] == i ? 1 : 0) + (specialConnections[1] == i ? 1 : 0);
+    /**
+     * the array Prim with the relaxation and argmin of every step split in chunks
+     */
+    private double findSpinningTreeParallel(double[] pi){
+        Arrays.fill(C, Double.MAX_VALUE);
+        Arrays.fill(fathers, -1);
+        Arrays.fill(isInQ, true);
+        if (!nearestKnown){
+            findNearestParallel();
+        }
+
+        primPi = pi;
+        double spinningTreeLength = 0;
+        int v = 0;
+        for (int step = 0; step < dimension; ++step){
+            isInQ[v] = false;
+            order[step] = v;
+            if (fathers[v] < 0){
+                root = v;
+            }else {
+                spinningTreeLength += C[v];
+            }
+            if (step == dimension - 1) break;
+
+            primV = v;
+            loop.run(0, dimension, relaxBody);
+            //chunks are in index order, the strict comparison keeps the first minimum
+            int nextV = -1;
+            double nextC = Double.MAX_VALUE;
+            for (int c = 0; c < chunkNode.length; ++c){
+                if (chunkNode[c] >= 0 && (nextV < 0 || chunkCost[c] < nextC)){
+                    nextV = chunkNode[c];
+                    nextC = chunkCost[c];
+                }
+            }
+            v = nextV;
+        }
+        primPi = null;
+        return spinningTreeLength;
     }
 
-    boolean hasEdge(int a, int b){
-        if (a == 0){
-            return specialConnections[0] == b || specialConnections[1] == b;
-        }else if (b==0){
-            return specialConnections[0] == a || specialConnections[1] == a;
-        }else {
-            return treeNodes[a].father == treeNodes[b] || treeNodes[b].father == treeNodes[a];
+    private void relaxChunk(int chunk, int from, int to){
+        int v = primV;
+        double[] pi = primPi;
+        int nextV = -1;
+        double nextC = Double.MAX_VALUE;
+        for (int w = from; w < to; ++w){
+            if (!isInQ[w]) continue;
+            double edgeLength = distance.getCost(v, w) + pi[v] + pi[w];
+            if (edgeLength < C[w]){
+                C[w] = edgeLength;
+                fathers[w] = v;
+            }
+            if (nextV < 0 || C[w] < nextC){
+                nextC = C[w];
+                nextV = w;
+            }
         }
+        chunkNode[chunk] = nextV;
+        chunkCost[chunk] = nextC;
     }
 
-    private double getCost(int i, int j){
-        return i > j ? costMatrix[i][j] : costMatrix[j][i];
+    /**
+     * the two nearest nodes of every node, each chunk of nodes scanning all the others
+     */
+    private void findNearestParallel(){
+        Arrays.fill(nearest, -1);
+        Arrays.fill(secondNearest, -1);
+        Arrays.fill(nearestCost, Double.MAX_VALUE);
+        Arrays.fill(secondNearestCost, Double.MAX_VALUE);
+        loop.run(0, dimension, new ParallelLoop.Body() {
+            @Override
+            public void run(int chunk, int from, int to) {
+                for (int a = from; a < to; ++a){
+                    for (int b = 0; b < dimension; ++b){
+                        if (b != a) offerNearest(a, b, distance.getCost(a, b));
+                    }
+                }
+            }
+        });
+        nearestKnown = true;
     }
 
-    private class TreeNode{
-        TreeNode father;
-        int data;
-        ArrayList<TreeNode> children = new ArrayList<>();
+    /**
+     * heap based Prim over a sparse graph
+     *
+     * @return length of the spanning tree, NaN if the graph is not connected
+     */
+    private double findSparseSpinningTree(double[] pi, SparseGraph graph){
+        if (heap == null){
+            heap = new int[dimension];
+            heapPos = new int[dimension];
+        }
+        Arrays.fill(C, Double.MAX_VALUE);
+        Arrays.fill(fathers, -1);
+        Arrays.fill(isInQ, true);
+        Arrays.fill(heapPos, -1);
+        heapSize = 0;
 
-        TreeNode(int data, TreeNode father){
-            this.father = father;
-            this.data = data;
-            if (father != null){
-                father.children.add(this);
+        double spinningTreeLength = 0;
+        int count = 0;
+        C[0] = 0;
+        heapUpdate(0);
+        while (heapSize > 0){
+            int v = heapPop();
+            isInQ[v] = false;
+            order[count++] = v;
+            if (fathers[v] < 0){
+                root = v;
+            }else{
+                spinningTreeLength += C[v];
+            }
+            for (int k = graph.start[v]; k < graph.start[v + 1]; ++k){
+                int w = graph.adjacency[k];
+                if (!isInQ[w]) continue;
+                double edgeLength = graph.costs[k] + pi[v] + pi[w];
+                if (edgeLength < C[w]){
+                    C[w] = edgeLength;
+                    fathers[w] = v;
+                    heapUpdate(w);
+                }
             }
         }
-        TreeNode addChild(int data){
-            return new TreeNode(data, this);
+        return count == dimension ? spinningTreeLength : Double.NaN;
+    }
+
+    private boolean heapLess(int a, int b){
+        return C[a] < C[b] || C[a] == C[b] && a < b;
+    }
+
+    /**
+     * insert v or move it up after its key decreased
+     */
+    private void heapUpdate(int v){
+        int i = heapPos[v];
+        if (i < 0){
+            i = heapSize++;
+        }
+        while (i > 0){
+            int parent = (i - 1) >>> 1;
+            if (!heapLess(v, heap[parent])) break;
+            heap[i] = heap[parent];
+            heapPos[heap[i]] = i;
+            i = parent;
         }
+        heap[i] = v;
+        heapPos[v] = i;
     }
 
+    private int heapPop(){
+        int top = heap[0];
+        heapPos[top] = -1;
+        int last = heap[--heapSize];
+        if (heapSize > 0){
+            int i = 0;
+            for (;;){
+                int child = 2 * i + 1;
+                if (child >= heapSize) break;
+                if (child + 1 < heapSize && heapLess(heap[child + 1], heap[child])) ++child;
+                if (!heapLess(heap[child], last)) break;
+                heap[i] = heap[child];
+                heapPos[heap[i]] = i;
+                i = child;
+            }
+            heap[i] = last;
+            heapPos[last] = i;
+        }
+        return top;
+    }
+
+    /**
+     * the two nearest nodes of every node among its sparse neighbours
+     */
+    private void collectNearest(SparseGraph graph){
+        Arrays.fill(nearest, -1);
+        Arrays.fill(secondNearest, -1);
+        Arrays.fill(nearestCost, Double.MAX_VALUE);
+        Arrays.fill(secondNearestCost, Double.MAX_VALUE);
+        for (int v = 0; v < dimension; ++v){
+            for (int k = graph.start[v]; k < graph.start[v + 1]; ++k){
+                offerNearest(v, graph.adjacency[k], graph.costs[k]);
+            }
+        }
+        nearestKnown = true;
+    }
+
+    /**
+     * keep the two nearest nodes of a, ties broken by index
+     */
+    private void offerNearest(int a, int b, double cost){
+        if (cost < nearestCost[a] || cost == nearestCost[a] && b < nearest[a]){
+            secondNearest[a] = nearest[a];
+            secondNearestCost[a] = nearestCost[a];
+            nearest[a] = b;
+            nearestCost[a] = cost;
+        }else if (cost < secondNearestCost[a] || cost == secondNearestCost[a] && b < secondNearest[a]){
+            secondNearest[a] = b;
+            secondNearestCost[a] = cost;
+        }
+    }
+
+    private void computeDegrees(){
+        Arrays.fill(degrees, 0);
+        for (int i = 0; i < dimension; ++i){
+            if (fathers[i] >= 0){
+                ++degrees[i];
+                ++degrees[fathers[i]];
+            }
+        }
+        ++degrees[specialConnections[0]];
+        ++degrees[specialConnections[1]];
+    }
+
+    int getDegree(int i){
+        return degrees[i];
+    }
+
+    int getFather(int i){
+        return fathers[i];
+    }
+
+    /**
+     * @return the nodes of the spanning tree with every father before its children
+     */
+    int[] getTopologicalOrder(){
+        return Arrays.copyOf(order, dimension);
+    }
+
+    int getSpecialConnection(int k){
+        return specialConnections[k];
+    }
+
+    boolean hasEdge(int a, int b){
+        return fathers[a] == b || fathers[b] == a
+                || specialConnections[0] == a && specialConnections[1] == b
+                || specialConnections[0] == b && specialConnections[1] == a;
+    }
 }
@@ -0,0 +1,94 @@
+package lkhj;
+
+import java.io.IOException;
+
+/**
+ * Explicit cost matrix packed row by row as a strictly lower triangle
+ * (i > j) in a single flat store, so there is no per-row array object
+ * and the weights take 4 bytes each whenever the weight range allows it.
+ */
+public class PackedTriangularMatrix implements DistanceFunction {
+
+    /**
+     * primitive type of the stored weights
+     */
+    public enum WeightType {
+        INT, FLOAT, DOUBLE;
+
+        /**
+         * the smallest type representing every weight in [min, max] exactly
+         *
+         * @param integral whether all the weights are integers
+         */
+        static public WeightType forRange(double min, double max, boolean integral) {
+            if (integral && min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE) {
+                return INT;
+            }
+            return DOUBLE;
+        }
+    }
+
+    /**
+     * where the weights live
+     */
+    public enum Storage {HEAP, DIRECT, MAPPED}
+
+    private final int dimension;
+    private final WeightType type;
+    private final WeightStore store;
+
+    public PackedTriangularMatrix(int dimension, WeightType type) {
+        this.dimension = dimension;
+        this.type = type;
+        store = WeightStore.onHeap(size(dimension), type);
+    }
+
+    /**
+     * @param storage where to keep the weights
+     * @param file    backing file of a MAPPED matrix, ignored otherwise
+     */
+    public PackedTriangularMatrix(int dimension, WeightType type, Storage storage, String file) throws IOException {
+        this.dimension = dimension;
+        this.type = type;
+        switch (storage) {
+            case DIRECT:
+                store = WeightStore.direct(size(dimension), type);
+                break;
+            case MAPPED:
+                store = WeightStore.mapped(size(dimension), type, file);
+                break;
+            default:
+                store = WeightStore.onHeap(size(dimension), type);
+        }
+    }
+
+    /**
+     * @return number of stored weights for a given dimension
+     */
+    static public long size(int dimension) {
+        return (long) dimension * (dimension - 1) / 2;
+    }
+
+    static private long index(int i, int j) {
+        return i > j ? (long) i * (i - 1) / 2 + j : (long) j * (j - 1) / 2 + i;
+    }
+
+    public WeightType getWeightType() {
+        return type;
+    }
+
+    @Override
+    public int getDimension() {
+        return dimension;
+    }
+
+    @Override
+    public double getCost(int i, int j) {
+        return i == j ? 0 : store.get(index(i, j));
+    }
+
+    public void setCost(int i, int j, double value) {
+        if (i == j) return;
+        store.set(index(i, j), value);
+    }
+}
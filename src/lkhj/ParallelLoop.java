@@ -0,0 +1,85 @@
+package lkhj;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a loop over an index range as fixed chunks on a ForkJoinPool.
+ * The chunks depend only on the range and the grain, not on the scheduling,
+ * so reductions combined in chunk order give the same result as a sequential loop.
+ * Without a pool the whole range is run in the calling thread as chunk 0.
+ * A loop run from a worker of the pool forks its chunks from that worker, which is much cheaper
+ * than submitting them from outside: a caller running many short loops should run inside the pool.
+ */
+class ParallelLoop {
+
+    interface Body {
+        /**
+         * run the indices [from, to) of the chunk-th chunk
+         */
+        void run(int chunk, int from, int to);
+    }
+
+    private final ForkJoinPool pool;
+    private final int grain;
+
+    /**
+     * @param pool  pool running the chunks, null to run sequentially
+     * @param grain number of indices per chunk
+     */
+    ParallelLoop(ForkJoinPool pool, int grain) {
+        this.pool = pool;
+        this.grain = Math.max(1, grain);
+    }
+
+    /**
+     * @return the number of chunks a range of size indices is split into
+     */
+    int chunks(int size) {
+        return pool == null ? 1 : Math.max(1, (size + grain - 1) / grain);
+    }
+
+    void run(int from, int to, Body body) {
+        int chunks = chunks(to - from);
+        if (chunks == 1) {
+            body.run(0, from, to);
+        } else {
+            Task task = new Task(body, from, to, grain, 0, chunks);
+            if (ForkJoinTask.getPool() == pool) {
+                task.invoke();
+            } else {
+                pool.invoke(task);
+            }
+        }
+    }
+
+    static private class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Body body;
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final int lo; //first chunk
+        private final int hi; //past the last chunk
+
+        Task(Body body, int from, int to, int grain, int lo, int hi) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo == 1) {
+                body.run(lo, from + lo * grain, Math.min(to, from + (lo + 1) * grain));
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new Task(body, from, to, grain, lo, mid), new Task(body, from, to, grain, mid, hi));
+            }
+        }
+    }
+}
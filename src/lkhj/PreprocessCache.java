@@ -0,0 +1,246 @@
+package lkhj;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Binary cache of the preprocessing of an instance:
+ * the coordinates or weights, the final pi vector, the lower bound,
+ * the best 1-tree and the candidate table.
+ * The file is keyed by a content hash of the instance and a hash of the ascent settings
+ * that produced pi, and read back with a single mapped read.
+ *
+ * Layout (big endian):
+ * magic, version, hash, ascent key, dimension, kind, coordinate type,
+ * coordinates (2n doubles) or weights (n(n-1)/2 doubles),
+ * lower bound, pi (n doubles), fathers (n ints), special edge (2 ints),
+ * candidate type, candidate stride, candidates (n * stride ints)
+ */
+public class PreprocessCache {
+
+    static private final int MAGIC = 0x4C4B484A; //"LKHJ"
+    static private final int VERSION = 3;
+    static private final byte KIND_COORDINATES = 0;
+    static private final byte KIND_WEIGHTS = 1;
+
+    final long hash;
+    final long ascentKey;
+    final double lowerBound;
+    final double[] pi;
+    final int[] fathers;
+    final int[] specialConnections;
+    final int candidateType;
+    final int candidateStride;
+    final int[] candidates;
+
+    PreprocessCache(long hash, long ascentKey, double lowerBound, double[] pi, int[] fathers, int[] specialConnections,
+                    int candidateType, int candidateStride, int[] candidates) {
+        this.hash = hash;
+        this.ascentKey = ascentKey;
+        this.lowerBound = lowerBound;
+        this.pi = pi;
+        this.fathers = fathers;
+        this.specialConnections = specialConnections;
+        this.candidateType = candidateType;
+        this.candidateStride = candidateStride;
+        this.candidates = candidates;
+    }
+
+    OneTree getOneTree() {
+        return new OneTree(fathers, specialConnections, lowerBound);
+    }
+
+    /**
+     * 64 bits hash of the instance content,
+     * O(n) for coordinate instances and O(n^2) for explicit ones
+     */
+    static long contentHash(DistanceFunction distance) {
+        long hash = mix(0x9E3779B97F4A7C15L, distance.getDimension());
+        if (distance instanceof CoordinateDistance) {
+            CoordinateDistance coordinates = (CoordinateDistance) distance;
+            hash = mix(hash, coordinates.type.ordinal());
+            for (int i = 0; i < coordinates.x.length; ++i) {
+                hash = mix(hash, Double.doubleToLongBits(coordinates.x[i]));
+                hash = mix(hash, Double.doubleToLongBits(coordinates.y[i]));
+            }
+        } else {
+            hash = mix(hash, -1);
+            for (int i = 1; i < distance.getDimension(); ++i) {
+                for (int j = 0; j < i; ++j) {
+                    hash = mix(hash, Double.doubleToLongBits(distance.getCost(i, j)));
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * 64 bits hash of the ascent settings, see LKHJ.ascentParameters()
+     */
+    static long parametersHash(String parameters) {
+        long hash = mix(0x9E3779B97F4A7C15L, parameters.length());
+        for (int i = 0; i < parameters.length(); ++i) {
+            hash = mix(hash, parameters.charAt(i));
+        }
+        return hash;
+    }
+
+    static private long mix(long hash, long value) {
+        long h = (hash ^ value) * 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 31;
+        return h * 0x94D049BB133111EBL;
+    }
+
+    /**
+     * load the cache when it exists and was made for this instance,
+     * a truncated or corrupt file is a miss
+     *
+     * @param hash          content hash of the instance
+     * @param ascentKey     hash of the ascent settings
+     * @param candidateType wanted kind of candidates
+     * @param maxCandidates wanted number of candidates per city
+     * @return the cached preprocessing or null
+     */
+    static PreprocessCache load(String file, long hash, long ascentKey, int candidateType, int maxCandidates)
+            throws IOException {
+        if (!new File(file).isFile()) return null;
+
+        ByteBuffer buffer = map(file);
+        if (buffer.remaining() < 32 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                || buffer.getLong() != hash || buffer.getLong() != ascentKey) {
+            return null;
+        }
+        int dimension = buffer.getInt();
+        if (dimension < 2 || buffer.remaining() < 2
+                || buffer.remaining() < 2 + instanceBytes(buffer.get(buffer.position()), dimension)
+                        + 8 + 12L * dimension + 16) {
+            return null;
+        }
+        skipInstance(buffer, dimension);
+
+        double lowerBound = buffer.getDouble();
+        double[] pi = new double[dimension];
+        buffer.asDoubleBuffer().get(pi);
+        buffer.position(buffer.position() + dimension * 8);
+        int[] fathers = new int[dimension];
+        buffer.asIntBuffer().get(fathers);
+        buffer.position(buffer.position() + dimension * 4);
+        int[] specialConnections = {buffer.getInt(), buffer.getInt()};
+        int cachedType = buffer.getInt();
+        int candidateStride = buffer.getInt();
+        if (cachedType != candidateType || candidateStride != Math.min(maxCandidates, dimension - 1)
+                || buffer.remaining() != 4L * dimension * candidateStride) {
+            return null;
+        }
+        int[] candidates = new int[dimension * candidateStride];
+        buffer.asIntBuffer().get(candidates);
+
+        return new PreprocessCache(hash, ascentKey, lowerBound, pi, fathers, specialConnections,
+                candidateType, candidateStride, candidates);
+    }
+
+    /**
+     * read back the instance stored in a cache file
+     */
+    static public DistanceFunction readInstance(String file) throws IOException {
+        ByteBuffer buffer = map(file);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new Error("Not a preprocessing cache file: " + file);
+        }
+        buffer.getLong();
+        buffer.getLong();
+        int dimension = buffer.getInt();
+        byte kind = buffer.get();
+        int type = buffer.get();
+        if (kind == KIND_COORDINATES) {
+            double[] x = new double[dimension];
+            double[] y = new double[dimension];
+            buffer.asDoubleBuffer().get(x);
+            buffer.position(buffer.position() + dimension * 8);
+            buffer.asDoubleBuffer().get(y);
+            return new CoordinateDistance(x, y, CoordinateDistance.Type.values()[type]);
+        }
+        PackedTriangularMatrix matrix = new PackedTriangularMatrix(dimension,
+                PackedTriangularMatrix.WeightType.DOUBLE);
+        for (int i = 1; i < dimension; ++i) {
+            for (int j = 0; j < i; ++j) {
+                matrix.setCost(i, j, buffer.getDouble());
+            }
+        }
+        return matrix;
+    }
+
+    void save(String file, DistanceFunction distance) throws IOException {
+        int dimension = distance.getDimension();
+        boolean isCoordinates = distance instanceof CoordinateDistance;
+        long size = 30 + instanceBytes(isCoordinates ? KIND_COORDINATES : KIND_WEIGHTS, dimension)
+                + 8 + 12L * dimension + 16 + 4L * candidates.length;
+        if (size > Integer.MAX_VALUE) {
+            System.out.println("Preprocessing too large to be cached: " + size + " bytes");
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(hash).putLong(ascentKey).putInt(dimension);
+        if (isCoordinates) {
+            CoordinateDistance coordinates = (CoordinateDistance) distance;
+            buffer.put(KIND_COORDINATES).put((byte) coordinates.type.ordinal());
+            for (double x : coordinates.x) buffer.putDouble(x);
+            for (double y : coordinates.y) buffer.putDouble(y);
+        } else {
+            buffer.put(KIND_WEIGHTS).put((byte) 0);
+            for (int i = 1; i < dimension; ++i) {
+                for (int j = 0; j < i; ++j) {
+                    buffer.putDouble(distance.getCost(i, j));
+                }
+            }
+        }
+        buffer.putDouble(lowerBound);
+        for (double p : pi) buffer.putDouble(p);
+        for (int f : fathers) buffer.putInt(f);
+        buffer.putInt(specialConnections[0]).putInt(specialConnections[1]);
+        buffer.putInt(candidateType).putInt(candidateStride);
+        for (int c : candidates) buffer.putInt(c);
+        buffer.flip();
+
+        //written beside the old file and renamed over it, an interrupted save leaves the old file intact
+        File target = new File(file).getAbsoluteFile();
+        File temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    static private long instanceBytes(byte kind, int dimension) {
+        return kind == KIND_COORDINATES ? 16L * dimension : 8 * PackedTriangularMatrix.size(dimension);
+    }
+
+    static private void skipInstance(ByteBuffer buffer, int dimension) {
+        byte kind = buffer.get();
+        buffer.get();
+        buffer.position((int) (buffer.position() + instanceBytes(kind, dimension)));
+    }
+
+    static private ByteBuffer map(String file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.load();
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package lkhj;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Best tour of runs made concurrently, replaced without locking by compare and set.
+ * A shorter tour wins and equal lengths go to the lower run, so the tour kept
+ * does not depend on the order in which the runs finish.
+ */
+class SharedBestTour {
+
+    static final class Entry {
+        final double length;
+        final int run;
+        //cities in tour order and the successor of every city
+        final int[] tour;
+        final int[] next;
+
+        private Entry(double length, int run, Tour tour, int dimension) {
+            this.length = length;
+            this.run = run;
+            this.tour = new int[dimension];
+            this.next = new int[dimension];
+            tour.snapshot(this.tour);
+            link();
+        }
+
+        /**
+         * @param tour cities in tour order, kept without copy
+         */
+        Entry(double length, int run, int[] tour) {
+            this.length = length;
+            this.run = run;
+            this.tour = tour;
+            this.next = new int[tour.length];
+            link();
+        }
+
+        private void link() {
+            int dimension = tour.length;
+            for (int i = 0; i < dimension; ++i) {
+                next[tour[i]] = tour[i + 1 == dimension ? 0 : i + 1];
+            }
+        }
+
+        private boolean isBeatenBy(double length, int run) {
+            int c = Double.compare(length, this.length);
+            return c < 0 || c == 0 && run < this.run;
+        }
+    }
+
+    private final AtomicReference<Entry> best = new AtomicReference<>();
+    private final int dimension;
+
+    SharedBestTour(int dimension) {
+        this.dimension = dimension;
+    }
+
+    /**
+     * @return the best tour so far, null before the first offer
+     */
+    Entry get() {
+        return best.get();
+    }
+
+    /**
+     * keep the tour of the run if it beats the best one, the tour is copied only in that case
+     *
+     * @return whether the tour was kept
+     */
+    boolean offer(double length, int run, Tour tour) {
+        Entry entry = null;
+        for (;;) {
+            Entry current = best.get();
+            if (current != null && !current.isBeatenBy(length, run)) return false;
+            if (entry == null) entry = new Entry(length, run, tour, dimension);
+            if (best.compareAndSet(current, entry)) return true;
+        }
+    }
+
+    /**
+     * keep the entry if it beats the best one
+     *
+     * @return whether the entry was kept
+     */
+    boolean offer(Entry entry) {
+        for (;;) {
+            Entry current = best.get();
+            if (current != null && !current.isBeatenBy(entry.length, entry.run)) return false;
+            if (best.compareAndSet(current, entry)) return true;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package lkhj;
+
+/**
+ * Symmetric sparse graph in compressed adjacency form:
+ * the neighbours of node i are adjacency[start[i] ... start[i + 1] - 1]
+ * and costs holds the cost of the corresponding edges.
+ */
+class SparseGraph {
+
+    final int dimension;
+    final int[] start;
+    final int[] adjacency;
+    final double[] costs;
+
+    private SparseGraph(int dimension, int[] start, int[] adjacency, double[] costs) {
+        this.dimension = dimension;
+        this.start = start;
+        this.adjacency = adjacency;
+        this.costs = costs;
+    }
+
+    /**
+     * build the union of the neighbour lists, every edge (i, j) is kept once in both directions
+     *
+     * @param neighbours neighbours of node i are neighbours[i * stride ... (i + 1) * stride - 1]
+     */
+    static SparseGraph fromNeighbours(DistanceFunction distance, int[] neighbours, int stride) {
+        int dimension = distance.getDimension();
+        int[] degree = new int[dimension + 1];
+        for (int i = 0; i < dimension; ++i) {
+            for (int k = i * stride; k < (i + 1) * stride; ++k) {
+                int j = neighbours[k];
+                ++degree[i];
+                if (!listed(neighbours, stride, j, i)) ++degree[j];
+            }
+        }
+
+        int[] start = new int[dimension + 1];
+        for (int i = 0; i < dimension; ++i) {
+            start[i + 1] = start[i] + degree[i];
+        }
+        int[] fill = new int[dimension];
+        System.arraycopy(start, 0, fill, 0, dimension);
+        int[] adjacency = new int[start[dimension]];
+        double[] costs = new double[start[dimension]];
+        for (int i = 0; i < dimension; ++i) {
+            for (int k = i * stride; k < (i + 1) * stride; ++k) {
+                int j = neighbours[k];
+                double cost = distance.getCost(i, j);
+                adjacency[fill[i]] = j;
+                costs[fill[i]++] = cost;
+                if (!listed(neighbours, stride, j, i)) {
+                    adjacency[fill[j]] = i;
+                    costs[fill[j]++] = cost;
+                }
+            }
+        }
+        return new SparseGraph(dimension, start, adjacency, costs);
+    }
+
+    static private boolean listed(int[] neighbours, int stride, int i, int j) {
+        for (int k = i * stride; k < (i + 1) * stride; ++k) {
+            if (neighbours[k] == j) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,672 @@
+package lkhj;
+
+import java.util.ArrayList;
+
+/**
+ * Three level doubly linked list in primitive arrays: cities are grouped in segments
+ * of about n^(1/3) cities and segments in groups of about n^(1/3) segments.
+ * The reverse bit of a segment is relative to its group, so reversing a sequence of whole groups
+ * only touches the groups and a flip costs O(n^(1/3)) instead of the O(sqrt(n)) of a two level list.
+ * As in ArrayTwoLevelTree, links stop at the ends of their segment or group, and a split moves
+ * the smaller part into the neighbouring segment or group so that their numbers never change.
+ */
+public class ThreeLevelTree implements Tour {
+
+    //per city, NONE at the ends of the segment
+    private final int[] segment;
+    private final int[] rank;
+    private final int[] previous;
+    private final int[] next;
+    //per segment, NONE at the ends of the group
+    private final boolean[] reversed;
+    private final int[] group;
+    private final int[] segmentRank;
+    private final int[] size;
+    private final int[] first;
+    private final int[] last;
+    private final int[] previousSegment;
+    private final int[] nextSegment;
+    //per group
+    private final boolean[] groupReversed;
+    private final int[] groupRank;
+    private final int[] groupSize;
+    private final int[] firstSegment;
+    private final int[] lastSegment;
+    private final int[] previousGroup;
+    private final int[] nextGroup;
+    private final int groupsNum;
+    private int headGroup;
+    //scratch space of the reversals and splits
+    private final int[] buffer;
+
+    private static final int NONE = -1;
+
+    public ThreeLevelTree(int[] tour) {
+        int n = tour.length;
+        segment = new int[n];
+        rank = new int[n];
+        previous = new int[n];
+        next = new int[n];
+        buffer = new int[n];
+
+        int groupSize = Math.max(2, (int) Math.cbrt(n));
+        int segmentsNum = Math.max(1, n / groupSize);
+        reversed = new boolean[segmentsNum];
+        group = new int[segmentsNum];
+        segmentRank = new int[segmentsNum];
+        size = new int[segmentsNum];
+        first = new int[segmentsNum];
+        last = new int[segmentsNum];
+        previousSegment = new int[segmentsNum];
+        nextSegment = new int[segmentsNum];
+
+        groupsNum = Math.max(1, segmentsNum / groupSize);
+        groupReversed = new boolean[groupsNum];
+        groupRank = new int[groupsNum];
+        this.groupSize = new int[groupsNum];
+        firstSegment = new int[groupsNum];
+        lastSegment = new int[groupsNum];
+        previousGroup = new int[groupsNum];
+        nextGroup = new int[groupsNum];
+        restore(tour);
+    }
+
+    @Override
+    public void restore(int[] tour) {
+        int n = tour.length;
+        int segmentsNum = size.length;
+        //the remainders go to the first segments and groups, one each
+        int from = 0;
+        for (int s = 0; s < segmentsNum; ++s) {
+            int to = from + n / segmentsNum + (s < n % segmentsNum ? 1 : 0);
+            reversed[s] = false;
+            size[s] = to - from;
+            first[s] = tour[from];
+            last[s] = tour[to - 1];
+            for (int i = from; i < to; ++i) {
+                int city = tour[i];
+                segment[city] = s;
+                rank[city] = i - from;
+                previous[city] = i == from ? NONE : tour[i - 1];
+                next[city] = i == to - 1 ? NONE : tour[i + 1];
+            }
+            from = to;
+        }
+        from = 0;
+        for (int g = 0; g < groupsNum; ++g) {
+            int to = from + segmentsNum / groupsNum + (g < segmentsNum % groupsNum ? 1 : 0);
+            groupReversed[g] = false;
+            groupRank[g] = g;
+            this.groupSize[g] = to - from;
+            firstSegment[g] = from;
+            lastSegment[g] = to - 1;
+            previousGroup[g] = g == 0 ? groupsNum - 1 : g - 1;
+            nextGroup[g] = g == groupsNum - 1 ? 0 : g + 1;
+            for (int s = from; s < to; ++s) {
+                group[s] = g;
+                segmentRank[s] = s - from;
+                previousSegment[s] = s == from ? NONE : s - 1;
+                nextSegment[s] = s == to - 1 ? NONE : s + 1;
+            }
+            from = to;
+        }
+        headGroup = 0;
+    }
+
+    /**
+     * @return whether the cities of segment s run against its links in the tour
+     */
+    private boolean isReversed(int s) {
+        return reversed[s] ^ groupReversed[group[s]];
+    }
+
+    private int headOf(int s) {
+        return isReversed(s) ? last[s] : first[s];
+    }
+
+    private int tailOf(int s) {
+        return isReversed(s) ? first[s] : last[s];
+    }
+
+    private int headSegmentOf(int g) {
+        return groupReversed[g] ? lastSegment[g] : firstSegment[g];
+    }
+
+    private int tailSegmentOf(int g) {
+        return groupReversed[g] ? firstSegment[g] : lastSegment[g];
+    }
+
+    private int nextSegmentOf(int s) {
+        int g = group[s];
+        if (groupReversed[g]) {
+            return s == firstSegment[g] ? headSegmentOf(nextGroup[g]) : previousSegment[s];
+        }
+        return s == lastSegment[g] ? headSegmentOf(nextGroup[g]) : nextSegment[s];
+    }
+
+    private int previousSegmentOf(int s) {
+        int g = group[s];
+        if (groupReversed[g]) {
+            return s == lastSegment[g] ? tailSegmentOf(previousGroup[g]) : nextSegment[s];
+        }
+        return s == firstSegment[g] ? tailSegmentOf(previousGroup[g]) : previousSegment[s];
+    }
+
+    @Override
+    public int next(int a) {
+        int s = segment[a];
+        if (isReversed(s)) {
+            return a == first[s] ? headOf(nextSegmentOf(s)) : previous[a];
+        }
+        return a == last[s] ? headOf(nextSegmentOf(s)) : next[a];
+    }
+
+    @Override
+    public int prev(int a) {
+        int s = segment[a];
+        if (isReversed(s)) {
+            return a == last[s] ? tailOf(previousSegmentOf(s)) : next[a];
+        }
+        return a == first[s] ? tailOf(previousSegmentOf(s)) : previous[a];
+    }
+
+    @Override
+    public int getHeadCityID() {
+        return headOf(headSegmentOf(headGroup));
+    }
+
+    /**
+     * @return whether a comes before b walking forward from the head of the tour
+     */
+    private boolean before(int a, int b) {
+        int sa = segment[a];
+        int sb = segment[b];
+        if (sa == sb) {
+            return isReversed(sa) ? rank[a] > rank[b] : rank[a] < rank[b];
+        }
+        int ga = group[sa];
+        int gb = group[sb];
+        if (ga == gb) {
+            return groupReversed[ga] ? segmentRank[sa] > segmentRank[sb] : segmentRank[sa] < segmentRank[sb];
+        }
+        return groupRank[ga] < groupRank[gb];
+    }
+
+    @Override
+    public boolean between(int a, int b, int c) {
+        boolean ab = before(a, b);
+        boolean bc = before(b, c);
+        boolean ca = before(c, a);
+        return ab && bc || ca && ab || bc && ca;
+    }
+
+    /**
+     * replace (a,b) and (c,d) by (b,c) and (a,d)
+     * a = next(b) d = next(c)
+     */
+    @Override
+    public void flip(int a, int b, int c, int d) {
+        if (a != next(b) || d != next(c)) {
+            throw new Error("Infeasible flip!");
+        }
+
+        //as in ArrayTwoLevelTree, the second split of a level either keeps the first one
+        //or leaves one of the paths inside a single segment or group
+        for (int attempt = 0; attempt < 6; ++attempt) {
+            if (liesInOneSegment(a, c)) {
+                reverseInSegment(a, c);
+                return;
+            }
+            if (liesInOneSegment(d, b)) {
+                reverseInSegment(d, b);
+                return;
+            }
+            if (a != headOf(segment[a])) {
+                splitBefore(a);
+                continue;
+            }
+            if (d != headOf(segment[d])) {
+                splitBefore(d);
+                continue;
+            }
+
+            int sa = segment[a];
+            int sb = segment[b];
+            int sc = segment[c];
+            int sd = segment[d];
+            if (liesInOneGroup(sa, sc)) {
+                reverseInGroup(sa, sc);
+                return;
+            }
+            if (liesInOneGroup(sd, sb)) {
+                reverseInGroup(sd, sb);
+                return;
+            }
+            if (sa != headSegmentOf(group[sa])) {
+                splitGroupBefore(sa);
+                continue;
+            }
+            if (sd != headSegmentOf(group[sd])) {
+                splitGroupBefore(sd);
+                continue;
+            }
+
+            int ga = group[sa];
+            int gc = group[sc];
+            int count = groupRank[gc] - groupRank[ga];
+            if (count < 0) count += groupsNum;
+            if (2 * (count + 1) <= groupsNum) {
+                reverseGroups(ga, gc);
+            } else {
+                reverseGroups(group[sd], group[sb]);
+            }
+            return;
+        }
+        throw new Error("Flip did not settle");
+    }
+
+    /**
+     * @return whether the path from a forward to c stays in the segment of a
+     */
+    private boolean liesInOneSegment(int a, int c) {
+        int s = segment[a];
+        return s == segment[c] && (isReversed(s) ? rank[a] >= rank[c] : rank[a] <= rank[c]);
+    }
+
+    /**
+     * @return whether the segments from sa forward to sc stay in the group of sa
+     */
+    private boolean liesInOneGroup(int sa, int sc) {
+        int g = group[sa];
+        return g == group[sc]
+                && (groupReversed[g] ? segmentRank[sa] >= segmentRank[sc] : segmentRank[sa] <= segmentRank[sc]);
+    }
+
+    /**
+     * reverse the path from a forward to c inside one segment
+     */
+    private void reverseInSegment(int a, int c) {
+        int s = segment[a];
+        //p .. q is the path in the order of the links
+        int p = isReversed(s) ? c : a;
+        int q = isReversed(s) ? a : c;
+        int before = previous[p];
+        int after = next[q];
+        int r = rank[p];
+
+        int count = 0;
+        for (int city = p; city != after; city = next[city]) {
+            buffer[count++] = city;
+        }
+        for (int k = 0; k < count; ++k) {
+            int city = buffer[count - 1 - k];
+            rank[city] = r + k;
+            previous[city] = k == 0 ? before : buffer[count - k];
+            next[city] = k == count - 1 ? after : buffer[count - 2 - k];
+        }
+        if (before == NONE) {
+            first[s] = q;
+        } else {
+            next[before] = q;
+        }
+        if (after == NONE) {
+            last[s] = p;
+        } else {
+            previous[after] = p;
+        }
+    }
+
+    /**
+     * reverse the segments from sa forward to sc inside one group
+     */
+    private void reverseInGroup(int sa, int sc) {
+        int g = group[sa];
+        int p = groupReversed[g] ? sc : sa;
+        int q = groupReversed[g] ? sa : sc;
+        int before = previousSegment[p];
+        int after = nextSegment[q];
+        int r = segmentRank[p];
+
+        int count = 0;
+        for (int s = p; s != after; s = nextSegment[s]) {
+            buffer[count++] = s;
+        }
+        for (int k = 0; k < count; ++k) {
+            int s = buffer[count - 1 - k];
+            reversed[s] = !reversed[s];
+            segmentRank[s] = r + k;
+            previousSegment[s] = k == 0 ? before : buffer[count - k];
+            nextSegment[s] = k == count - 1 ? after : buffer[count - 2 - k];
+        }
+        if (before == NONE) {
+            firstSegment[g] = q;
+        } else {
+            nextSegment[before] = q;
+        }
+        if (after == NONE) {
+            lastSegment[g] = p;
+        } else {
+            previousSegment[after] = p;
+        }
+    }
+
+    /**
+     * reverse the sequence of groups from ga forward to gc
+     */
+    private void reverseGroups(int ga, int gc) {
+        int before = previousGroup[ga];
+        int after = nextGroup[gc];
+        int r = groupRank[ga];
+
+        int count = 0;
+        for (int g = ga; ; g = nextGroup[g]) {
+            buffer[count++] = g;
+            if (g == gc) break;
+        }
+        for (int k = 0; k < count; ++k) {
+            int g = buffer[count - 1 - k];
+            groupReversed[g] = !groupReversed[g];
+            groupRank[g] = (r + k) % groupsNum;
+            if (groupRank[g] == 0) headGroup = g;
+            previousGroup[g] = k == 0 ? before : buffer[count - k];
+            nextGroup[g] = k == count - 1 ? after : buffer[count - 2 - k];
+        }
+        nextGroup[before] = gc;
+        previousGroup[after] = ga;
+    }
+
+    /**
+     * cut the segment of x between prev(x) and x, the smaller part joins the neighbouring segment
+     */
+    private void splitBefore(int x) {
+        int s = segment[x];
+        boolean reverse = isReversed(s);
+        //cities from x to the tail of the segment
+        int tail = reverse ? rank[x] - rank[first[s]] + 1 : rank[last[s]] - rank[x] + 1;
+        int count = 0;
+        if (2 * tail <= size[s]) {
+            for (int city = x; count < tail; city = reverse ? previous[city] : next[city]) {
+                buffer[count++] = city;
+            }
+            detach(s, count, reverse);
+            int t = nextSegmentOf(s);
+            for (int k = count - 1; k >= 0; --k) {
+                if (isReversed(t)) {
+                    append(t, buffer[k]);
+                } else {
+                    prepend(t, buffer[k]);
+                }
+            }
+        } else {
+            int city = headOf(s);
+            for (int k = size[s] - tail; k > 0; --k) {
+                buffer[count++] = city;
+                city = reverse ? previous[city] : next[city];
+            }
+            detach(s, count, !reverse);
+            int t = previousSegmentOf(s);
+            for (int k = 0; k < count; ++k) {
+                if (isReversed(t)) {
+                    prepend(t, buffer[k]);
+                } else {
+                    append(t, buffer[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * drop count cities from the first or the last end of segment s in the order of the links
+     */
+    private void detach(int s, int count, boolean fromFirst) {
+        size[s] -= count;
+        if (fromFirst) {
+            int city = first[s];
+            for (int k = count; k > 0; --k) city = next[city];
+            first[s] = city;
+            previous[city] = NONE;
+        } else {
+            int city = last[s];
+            for (int k = count; k > 0; --k) city = previous[city];
+            last[s] = city;
+            next[city] = NONE;
+        }
+    }
+
+    private void append(int s, int city) {
+        int end = last[s];
+        segment[city] = s;
+        rank[city] = rank[end] + 1;
+        previous[city] = end;
+        next[city] = NONE;
+        next[end] = city;
+        last[s] = city;
+        ++size[s];
+    }
+
+    private void prepend(int s, int city) {
+        int end = first[s];
+        segment[city] = s;
+        rank[city] = rank[end] - 1;
+        next[city] = end;
+        previous[city] = NONE;
+        previous[end] = city;
+        first[s] = city;
+        ++size[s];
+    }
+
+    /**
+     * cut the group of segment x before x, the smaller part joins the neighbouring group
+     */
+    private void splitGroupBefore(int x) {
+        int g = group[x];
+        boolean reverse = groupReversed[g];
+        //segments from x to the tail of the group
+        int tail = reverse ? segmentRank[x] - segmentRank[firstSegment[g]] + 1
+                : segmentRank[lastSegment[g]] - segmentRank[x] + 1;
+        int count = 0;
+        if (2 * tail <= groupSize[g]) {
+            for (int s = x; count < tail; s = reverse ? previousSegment[s] : nextSegment[s]) {
+                buffer[count++] = s;
+            }
+            detachSegments(g, count, reverse);
+            int h = nextGroup[g];
+            for (int k = count - 1; k >= 0; --k) {
+                if (groupReversed[h]) {
+                    appendSegment(h, buffer[k]);
+                } else {
+                    prependSegment(h, buffer[k]);
+                }
+            }
+        } else {
+            int s = headSegmentOf(g);
+            for (int k = groupSize[g] - tail; k > 0; --k) {
+                buffer[count++] = s;
+                s = reverse ? previousSegment[s] : nextSegment[s];
+            }
+            detachSegments(g, count, !reverse);
+            int h = previousGroup[g];
+            for (int k = 0; k < count; ++k) {
+                if (groupReversed[h]) {
+                    prependSegment(h, buffer[k]);
+                } else {
+                    appendSegment(h, buffer[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * drop count segments from the first or the last end of group g in the order of the links,
+     * they keep their group until they are added to another one
+     */
+    private void detachSegments(int g, int count, boolean fromFirst) {
+        groupSize[g] -= count;
+        if (fromFirst) {
+            int s = firstSegment[g];
+            for (int k = count; k > 0; --k) s = nextSegment[s];
+            firstSegment[g] = s;
+            previousSegment[s] = NONE;
+        } else {
+            int s = lastSegment[g];
+            for (int k = count; k > 0; --k) s = previousSegment[s];
+            lastSegment[g] = s;
+            nextSegment[s] = NONE;
+        }
+    }
+
+    /**
+     * move segment s into group h keeping the direction of its cities in the tour
+     */
+    private void moveSegment(int s, int h) {
+        reversed[s] ^= groupReversed[group[s]] ^ groupReversed[h];
+        group[s] = h;
+        ++groupSize[h];
+    }
+
+    private void appendSegment(int h, int s) {
+        int end = lastSegment[h];
+        moveSegment(s, h);
+        segmentRank[s] = segmentRank[end] + 1;
+        previousSegment[s] = end;
+        nextSegment[s] = NONE;
+        nextSegment[end] = s;
+        lastSegment[h] = s;
+    }
+
+    private void prependSegment(int h, int s) {
+        int end = firstSegment[h];
+        moveSegment(s, h);
+        segmentRank[s] = segmentRank[end] - 1;
+        nextSegment[s] = end;
+        previousSegment[s] = NONE;
+        previousSegment[end] = s;
+        firstSegment[h] = s;
+    }
+
+    /**
+     * remove (a,b) and (c,d), add (b,c) and (a,d) whatever the orientation of the tour
+     */
+    private void move(int a, int b, int c, int d) {
+        if (a == next(b)) {
+            flip(a, b, c, d);
+        } else {
+            flip(b, a, d, c);
+        }
+    }
+
+    private boolean isFeasibleNS4E(int t1, int t2, int t3, int t4, int t5, int t6, int t7, int t8) {
+        return (next(t1) == t2 && next(t3) == t4 && next(t5) == t6 && next(t7) == t8)
+                &&
+                between(t1, t7, t3) && between(t7, t3, t5) && between(t3, t5, t1) && between(t5, t1, t7);
+    }
+
+    /**
+     * the double bridge as four 2-opt moves, see ArrayTwoLevelTree
+     */
+    @Override
+    public void nonSequ4Exchange(int t1, int t2, int t3, int t4, int t5, int t6, int t7, int t8) {
+        if (!isFeasibleNS4E(t1, t2, t3, t4, t5, t6, t7, t8)) {
+            throw new Error("Infeasible 4 exchange: " + t1 + " " +
+                    t2 + " " + t3 + " " + t4 + " " +
+                    t5 + " " + t6 + " " + t7 + " " + t8);
+        }
+        move(t2, t1, t5, t6);
+        move(t5, t1, t4, t3);
+        move(t3, t5, t8, t7);
+        move(t7, t3, t2, t6);
+    }
+
+    @Override
+    public void nonSequ4Exchange2(int t1, int t2, int t3, int t4, int t5, int t6, int t7, int t8) {
+        if (!isFeasibleNS4E(t1, t2, t3, t4, t5, t6, t7, t8)) {
+            throw new Error("Infeasible 4 exchange type 2: " + t1 + " " +
+                    t2 + " " + t3 + " " + t4 + " " +
+                    t5 + " " + t6 + " " + t7 + " " + t8);
+        }
+        move(t2, t1, t5, t6);
+        move(t5, t1, t4, t3);
+        move(t3, t5, t2, t6);
+        move(t2, t5, t7, t8);
+        move(t8, t2, t3, t6);
+    }
+
+    @Override
+    public int[] getCurrentTour() {
+        int[] tour = new int[segment.length];
+        snapshot(tour);
+        return tour;
+    }
+
+    @Override
+    public void snapshot(int[] tour) {
+        int city = getHeadCityID();
+        for (int i = 0; i < tour.length; ++i) {
+            tour[i] = city;
+            city = next(city);
+        }
+    }
+
+    @Override
+    public ArrayList<Integer> getPath(int from, int to) {
+        ArrayList<Integer> path = new ArrayList<>();
+        for (int city = from; city != to; city = next(city)) {
+            path.add(city);
+        }
+        return path;
+    }
+
+    @Override
+    public boolean hasEdge(int a, int b) {
+        return next(a) == b || next(b) == a;
+    }
+
+    @Override
+    public boolean checkTree() {
+        int cities = 0;
+        int segments = 0;
+        int g = headGroup;
+        for (int r = 0; r < groupsNum; ++r) {
+            if (groupRank[g] != r || previousGroup[nextGroup[g]] != g) {
+                System.err.println("Group link error");
+                return false;
+            }
+            int count = 0;
+            for (int s = firstSegment[g]; s != NONE; s = nextSegment[s]) {
+                ++count;
+                if (group[s] != g
+                        || s != firstSegment[g] && segmentRank[previousSegment[s]] != segmentRank[s] - 1
+                        || nextSegment[s] == NONE && s != lastSegment[g]) {
+                    System.err.println("Segment link error");
+                    return false;
+                }
+                int size = 0;
+                for (int city = first[s]; city != NONE; city = next[city]) {
+                    ++size;
+                    if (segment[city] != s
+                            || city != first[s] && rank[previous[city]] != rank[city] - 1
+                            || next[city] == NONE && city != last[s]) {
+                        System.err.println("City link error");
+                        return false;
+                    }
+                }
+                if (size != this.size[s]) {
+                    System.err.println("Segment size error");
+                    return false;
+                }
+                cities += size;
+            }
+            if (count != groupSize[g]) {
+                System.err.println("Group size error");
+                return false;
+            }
+            segments += count;
+            g = nextGroup[g];
+        }
+        if (g != headGroup || segments != size.length || cities != segment.length) {
+            System.err.println("Group ring error");
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,70 @@
+package lkhj;
+
+import java.util.ArrayList;
+
+/**
+ * Cyclic tour over the cities 0 ... n - 1 as used by the LK search.
+ * Only the cyclic sequence is meaningful: after a flip or an exchange
+ * an implementation may present the tour in either direction.
+ */
+public interface Tour {
+
+    /**
+     * @return the successor of a
+     */
+    int next(int a);
+
+    /**
+     * @return the predecessor of a
+     */
+    int prev(int a);
+
+    /**
+     * @return whether b lies strictly after a and before c when walking forward from a
+     */
+    boolean between(int a, int b, int c);
+
+    /**
+     * replace (a,b) and (c,d) by (b,c) and (a,d)
+     * a = next(b) d = next(c)
+     */
+    void flip(int a, int b, int c, int d);
+
+    /**
+     * double bridge: with the tour t1 t2 .. t7 t8 .. t3 t4 .. t5 t6 .. t1,
+     * replace (t1,t2) (t3,t4) (t5,t6) (t7,t8) by (t1,t4) (t5,t8) (t3,t2) (t7,t6)
+     */
+    void nonSequ4Exchange(int t1, int t2, int t3, int t4, int t5, int t6, int t7, int t8);
+
+    /**
+     * same tour order as nonSequ4Exchange, the paths t2 .. t7 and t8 .. t3 are reversed:
+     * replace (t1,t2) (t3,t4) (t5,t6) (t7,t8) by (t1,t4) (t5,t7) (t2,t3) (t8,t6)
+     */
+    void nonSequ4Exchange2(int t1, int t2, int t3, int t4, int t5, int t6, int t7, int t8);
+
+    /**
+     * @return the cities in tour order starting at getHeadCityID()
+     */
+    int[] getCurrentTour();
+
+    /**
+     * write the cities in tour order starting at getHeadCityID() into tour, O(n) without allocation
+     */
+    void snapshot(int[] tour);
+
+    /**
+     * reset the tour to the cities in tour order, reusing the storage of the structure
+     */
+    void restore(int[] tour);
+
+    /**
+     * @return the cities from "from" included to "to" excluded walking forward
+     */
+    ArrayList<Integer> getPath(int from, int to);
+
+    boolean hasEdge(int a, int b);
+
+    int getHeadCityID();
+
+    boolean checkTree();
+}
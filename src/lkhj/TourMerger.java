@@ -0,0 +1,332 @@
+package lkhj;
+
+import java.util.Arrays;
+
+/**
+ * Partition crossover of two tours in O(n): the edges the tours do not share split the cities
+ * into components, a component whose entry cities (portals) are joined in the same pairs by the paths
+ * of both tours inside it can take the paths of either tour. The child takes the shorter paths in each
+ * of these components and the shorter tour in all the other components together,
+ * so it is never longer than the better parent and often shorter than both.
+ * As in GPX2, a city where the tours share no edge is split into the city and a ghost joined by
+ * a shared edge of cost 0, which cuts the large components into more partitions.
+ */
+public class TourMerger {
+
+    private final DistanceFunction distance;
+    private final int dimension;
+    //nodes 0 .. dimension - 1 are the cities, node v + dimension is the ghost of a split city v
+    private final boolean[] split;
+    private final int[] nextA;
+    private final int[] prevA;
+    private final int[] nextB;
+    private final int[] prevB;
+    //union find over the nodes, then the component of every node, -1 when both tours agree on it
+    private final int[] component;
+    //other end of the path of each tour inside its component, for the portals
+    private final int[] pairA;
+    private final int[] pairB;
+    //per component root
+    private final double[] costA;
+    private final double[] costB;
+    private final boolean[] feasible;
+    private final boolean[] fromB;
+    private double childLength;
+    private int components;
+    private int swapped;
+
+    public TourMerger(DistanceFunction distance) {
+        this.distance = distance;
+        this.dimension = distance.getDimension();
+        split = new boolean[dimension];
+        nextA = new int[2 * dimension];
+        prevA = new int[2 * dimension];
+        nextB = new int[2 * dimension];
+        prevB = new int[2 * dimension];
+        component = new int[2 * dimension];
+        pairA = new int[2 * dimension];
+        pairB = new int[2 * dimension];
+        costA = new double[2 * dimension];
+        costB = new double[2 * dimension];
+        feasible = new boolean[2 * dimension];
+        fromB = new boolean[2 * dimension];
+    }
+
+    /**
+     * merge a with b walked in both directions, which split the cities differently, and keep the shorter child
+     *
+     * @param a cities in tour order
+     * @param b cities in tour order
+     * @return the child in tour order
+     */
+    public int[] merge(int[] a, int[] b) {
+        if (a.length != dimension || b.length != dimension) {
+            throw new Error("Tour size error: " + a.length + " " + b.length);
+        }
+        int[] child = merge(a, b, false);
+        double length = childLength;
+        int count = components;
+        int taken = swapped;
+        int[] reversedChild = merge(a, b, true);
+        if (childLength < length) {
+            return reversedChild;
+        }
+        childLength = length;
+        components = count;
+        swapped = taken;
+        return child;
+    }
+
+    private int[] merge(int[] a, int[] b, boolean reversed) {
+        Arrays.fill(split, false);
+        link(a, false, nextA, prevA);
+        link(b, reversed, nextB, prevB);
+        for (int v = 0; v < dimension; ++v) {
+            split[v] = !isEdgeOfB(v, nextA[v]) && !isEdgeOfB(v, prevA[v]);
+        }
+        //again with the ghosts following their cities in both tours
+        link(a, false, nextA, prevA);
+        link(b, reversed, nextB, prevB);
+
+        //components of the edges of a not in b and of b not in a
+        for (int v = 0; v < 2 * dimension; ++v) {
+            component[v] = v;
+        }
+        for (int v = 0; v < 2 * dimension; ++v) {
+            if (!isNode(v)) continue;
+            if (!isEdgeOfB(v, nextA[v])) union(v, nextA[v]);
+            if (!isEdgeOfA(v, nextB[v])) union(v, nextB[v]);
+        }
+        for (int v = 0; v < 2 * dimension; ++v) {
+            if (!isNode(v) || isEdgeOfB(v, nextA[v]) && isEdgeOfB(v, prevA[v])) {
+                //both tours agree on the node, it is alone in its set
+                component[v] = -1;
+            }
+        }
+        compress();
+        evaluate();
+        if (fuse()) {
+            compress();
+            evaluate();
+        }
+
+        //the infeasible components all come from the same tour, the one shorter on them
+        double infeasibleA = 0;
+        double infeasibleB = 0;
+        for (int v = 0; v < 2 * dimension; ++v) {
+            if (component[v] == v && !feasible[v]) {
+                infeasibleA += costA[v];
+                infeasibleB += costB[v];
+            }
+        }
+        boolean infeasibleFromB = infeasibleB < infeasibleA;
+
+        childLength = 0;
+        for (int v = 0; v < 2 * dimension; ++v) {
+            if (isNode(v)) childLength += cost(v, nextA[v]);
+        }
+        swapped = 0;
+        components = 0;
+        for (int v = 0; v < 2 * dimension; ++v) {
+            if (component[v] != v) continue;
+            ++components;
+            fromB[v] = feasible[v] ? costB[v] < costA[v] : infeasibleFromB;
+            if (fromB[v]) {
+                childLength -= costA[v] - costB[v];
+                ++swapped;
+            }
+        }
+        return buildChild(a[0]);
+    }
+
+    /**
+     * @return length of the last child
+     */
+    public double getChildLength() {
+        return childLength;
+    }
+
+    /**
+     * @return number of components of the last merge
+     */
+    public int getComponentCount() {
+        return components;
+    }
+
+    /**
+     * @return number of components the last child took from b
+     */
+    public int getSwappedCount() {
+        return swapped;
+    }
+
+    private boolean isNode(int v) {
+        return v < dimension || split[v - dimension];
+    }
+
+    private double cost(int u, int v) {
+        int cu = u < dimension ? u : u - dimension;
+        int cv = v < dimension ? v : v - dimension;
+        return cu == cv ? 0 : distance.getCost(cu, cv);
+    }
+
+    /**
+     * link the nodes in the order of the tour, a split city is followed by its ghost
+     */
+    private void link(int[] tour, boolean reversed, int[] next, int[] prev) {
+        int first = tour[reversed ? dimension - 1 : 0];
+        int last = -1;
+        for (int i = 0; i < dimension; ++i) {
+            int city = tour[reversed ? dimension - 1 - i : i];
+            if (last >= 0) {
+                next[last] = city;
+                prev[city] = last;
+            }
+            last = city;
+            if (split[city]) {
+                next[city] = city + dimension;
+                prev[city + dimension] = city;
+                last = city + dimension;
+            }
+        }
+        next[last] = first;
+        prev[first] = last;
+    }
+
+    private boolean isEdgeOfA(int u, int v) {
+        return nextA[u] == v || prevA[u] == v;
+    }
+
+    private boolean isEdgeOfB(int u, int v) {
+        return nextB[u] == v || prevB[u] == v;
+    }
+
+    private int find(int v) {
+        while (component[v] != v) {
+            component[v] = component[component[v]];
+            v = component[v];
+        }
+        return v;
+    }
+
+    private void union(int u, int v) {
+        int ru = find(u);
+        int rv = find(v);
+        if (ru != rv) component[ru] = rv;
+    }
+
+    private void compress() {
+        for (int v = 0; v < 2 * dimension; ++v) {
+            if (component[v] >= 0) component[v] = find(v);
+        }
+    }
+
+    /**
+     * cost of both tours inside every component and whether the tours join its portals in the same pairs
+     */
+    private void evaluate() {
+        for (int v = 0; v < 2 * dimension; ++v) {
+            if (component[v] == v) {
+                costA[v] = 0;
+                costB[v] = 0;
+                feasible[v] = true;
+            }
+        }
+        for (int v = 0; v < 2 * dimension; ++v) {
+            int c = component[v];
+            if (c < 0) continue;
+            //every inner edge is seen from both of its ends
+            if (component[nextA[v]] == c) costA[c] += cost(v, nextA[v]);
+            if (component[nextB[v]] == c) costB[c] += cost(v, nextB[v]);
+        }
+        for (int v = 0; v < 2 * dimension; ++v) {
+            int c = component[v];
+            if (c < 0 || !isPortal(v)) continue;
+            pairA[v] = walk(v, nextA, prevA);
+            pairB[v] = walk(v, nextB, prevB);
+        }
+        for (int v = 0; v < 2 * dimension; ++v) {
+            int c = component[v];
+            if (c >= 0 && isPortal(v) && pairA[v] != pairB[v]) feasible[c] = false;
+        }
+    }
+
+    /**
+     * fuse every two infeasible components that the tours join by a path of shared edges,
+     * the nodes of the path join the fused component. Several infeasible components
+     * often make a feasible one together.
+     *
+     * @return whether a component was fused
+     */
+    private boolean fuse() {
+        boolean fused = false;
+        for (int v = 0; v < 2 * dimension; ++v) {
+            if (component[v] < 0) continue;
+            int c = find(v);
+            int node = nextA[v];
+            if (feasible[c] || component[node] >= 0 && find(node) == c) continue;
+            //v leaves its component forward along a
+            while (component[node] < 0) {
+                node = nextA[node];
+            }
+            int other = find(node);
+            if (feasible[other] || other == c) continue;
+            for (node = nextA[v]; component[node] < 0; node = nextA[node]) {
+                component[node] = c;
+            }
+            component[c] = other;
+            fused = true;
+        }
+        return fused;
+    }
+
+    /**
+     * a portal has one edge leaving its component, shared by both tours
+     */
+    private boolean isPortal(int v) {
+        int c = component[v];
+        return component[nextA[v]] != c || component[prevA[v]] != c;
+    }
+
+    /**
+     * @return the portal at the other end of the path of the tour inside the component of portal v
+     */
+    private int walk(int v, int[] next, int[] prev) {
+        int c = component[v];
+        boolean forward = component[next[v]] == c;
+        int node = v;
+        while (true) {
+            int following = forward ? next[node] : prev[node];
+            if (component[following] != c) return node;
+            node = following;
+        }
+    }
+
+    /**
+     * every node takes its neighbours from b when its component was swapped, from a otherwise,
+     * the ghosts are dropped
+     */
+    private int[] buildChild(int start) {
+        int[] child = new int[dimension];
+        int count = 0;
+        int previous = -1;
+        int node = start;
+        do {
+            if (node < dimension) {
+                if (count == dimension) throw new Error("Merged tour is not a cycle");
+                child[count++] = node;
+            }
+            int c = component[node];
+            boolean b = c >= 0 && fromB[c];
+            int n1 = b ? nextB[node] : nextA[node];
+            int n2 = b ? prevB[node] : prevA[node];
+            int following = n1 != previous ? n1 : n2;
+            previous = node;
+            node = following;
+        } while (node != start);
+        if (count != dimension) {
+            throw new Error("Merged tour is not a cycle");
+        }
+        return child;
+    }
+}
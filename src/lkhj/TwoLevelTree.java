@@ -1,21 +1,54 @@
 package lkhj;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Solve fractional TSP using two level tree structure
  * Created by Xavier on 2017/6/6.
  */
-public class TwoLevelTree {
+public class TwoLevelTree implements Tour {
 
-    final private double lower;
-    final private double upper;
+    private double lower;
+    private double upper;
+    private int segmentSize;
+    private final boolean adaptive;
     private Element[] citysElements;
     private int parentsNum = 0;
     private Parent headParent = null;
+    //parents dropped by merges are reused by splits so that flips do not allocate
+    private Parent[] freeParents = new Parent[16];
+    private int freeCount = 0;
+    //parents left smaller than lower by splits or by a larger segment size, merged together once
+    //there are too many of them, a flip near a recent one often reuses them instead of splitting again
+    private final ArrayList<Parent> smallParents = new ArrayList<>();
+    //ids of consecutive parents increase by ID_GAP after a renumbering,
+    //so that a split can usually give the new parent an id between its neighbours
+    private static final int ID_GAP = 1 << 10;
+    private static final int ID_LIMIT = 1 << 29;
+
+    private long flips = 0;
+    private long splits = 0;
+    private long merges = 0;
+    private long renumbers = 0;
+    //elements and parents walked since the last adaptation of the segment size
+    private long elementWork = 0;
+    private long parentWork = 0;
+    private int adaptFlips = 0;
+    private static final int ADAPT_PERIOD = 1000;
 
 
     public TwoLevelTree(int[] tour) {
+        this(tour, (int) Math.sqrt(tour.length), false);
+    }
+
+    /**
+     * @param segmentSize target number of cities of a segment, segments are kept between
+     *                    half and twice this size
+     * @param adaptive    adjust the target size to the flips actually made,
+     *                    so that walking elements and walking parents cost about the same
+     */
+    public TwoLevelTree(int[] tour, int segmentSize, boolean adaptive) {
 
         //initialize all city segments
         citysElements = new Element[tour.length];
@@ -23,28 +56,98 @@ public class TwoLevelTree {
             citysElements[i] = new Element(i);
         }
 
-        lower = Math.sqrt(citysElements.length) / 2;
-        upper = lower * 4;
+        this.adaptive = adaptive;
+        setSegmentSize(segmentSize);
+        restore(tour);
+    }
+
+    /**
+     * rebuild the tree from the cities in tour order, reusing its elements and parents.
+     * The segment size adapted so far is kept, the statistics start again from zero.
+     */
+    @Override
+    public void restore(int[] tour) {
+        if (tour.length != citysElements.length) {
+            throw new Error("Tour size error: " + tour.length);
+        }
+        if (headParent != null) {
+            Parent parent = headParent;
+            do {
+                Parent nextPar = parent.nextParent;
+                releaseParent(parent);
+                parent = nextPar;
+            } while (parent != headParent);
+            headParent = null;
+            parentsNum = 0;
+        }
 
         //build the two level tree
-        int stdParentSize = (int) lower * 2;
-        Parent parent = new Parent();
+        int stdParentSize = this.segmentSize;
+        Parent parent = newEmptyParent();
         for (int i : tour) {
             Element element = citysElements[i];
             parent.addElementToLast(element);
             if (parent.size >= stdParentSize) {
                 addParent(parent);
-                parent = new Parent();
+                parent = newEmptyParent();
             }
         }
-        if (parent.size > 0 && parent.size < stdParentSize) {
+        if (parent.size > 0) {
             addParent(parent);
+        } else {
+            releaseParent(parent);
         }
-        if (headParent.previousParent.size < lower) {
+        if (headParent.previousParent.size < lower && parentsNum > 1) {
             mergeParBToParA(headParent.previousParent, headParent);
-            headParent = headParent.previousParent;
-            reSortAllParentID();
         }
+        reSortAllParentID();
+        flips = 0;
+        splits = 0;
+        renumbers = 0;
+        merges = 0;
+        elementWork = 0;
+        parentWork = 0;
+        adaptFlips = 0;
+    }
+
+    private void setSegmentSize(int size) {
+        //at most a quarter of the cities so that there are always several parents,
+        //a path could wrap around the end of a lone parent
+        segmentSize = Math.max(2, Math.min(size, citysElements.length / 4));
+        lower = segmentSize / 2.0;
+        upper = segmentSize * 2.0;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public long getFlipCount() {
+        return flips;
+    }
+
+    public long getSplitCount() {
+        return splits;
+    }
+
+    public long getMergeCount() {
+        return merges;
+    }
+
+    /**
+     * @return how many times the ids of all the parents were renumbered
+     */
+    public long getRenumberCount() {
+        return renumbers;
+    }
+
+    /**
+     * @return the segment size and the splits, merges and renumberings per flip
+     */
+    public String getStatistics() {
+        double perFlip = flips == 0 ? 0 : 1.0 / flips;
+        return String.format("segment size %d, %d parents, per flip: %.3f splits, %.3f merges, %.4f renumbers",
+                segmentSize, parentsNum, splits * perFlip, merges * perFlip, renumbers * perFlip);
     }
 
     public void printTour() {
@@ -88,29 +191,26 @@ public class TwoLevelTree {
                 && citysElements[t1].parent == citysElements[t8].parent) {
             nonCon4ExchangeInSegment(t1, t2, t3, t4, t5, t6, t7, t8);
         } else {
-            ArrayList<Parent> smallP = splitToFitNS4Exchange(t1, t2, t3, t4, t5, t6, t7, t8);
+            splitToFitNS4Exchange(t1, t2, t3, t4, t5, t6, t7, t8);
             nonSequ4Exchange(t1, t2, t3, t4, t5, t6, t7, t8);
-            mergeParents(smallP);
+            rebalance();
         }
     }
 
-    private ArrayList<Parent> splitToFitNS4Exchange(int t1, int t2, int t3, int t4,
-                                                    int t5, int t6, int t7, int t8){
-        ArrayList<Parent> smallParent = new ArrayList<>();
+    private void splitToFitNS4Exchange(int t1, int t2, int t3, int t4,
+                                       int t5, int t6, int t7, int t8){
         if (citysElements[t1].parent == citysElements[t2].parent){
-            splitSegment(t1, t2, smallParent);
+            splitSegment(t1, t2);
         }
         if (citysElements[t3].parent == citysElements[t4].parent){
-            splitSegment(t3, t4, smallParent);
+            splitSegment(t3, t4);
         }
         if (citysElements[t5].parent == citysElements[t6].parent){
-            splitSegment(t5, t6, smallParent);
+            splitSegment(t5, t6);
         }
         if (citysElements[t7].parent == citysElements[t8].parent){
-            splitSegment(t7,t8,smallParent);
+            splitSegment(t7,t8);
         }
-        reSortAllParentID();
-        return smallParent;
     }
 
     private void conElementsInSegment(int a, int b) {
@@ -198,9 +298,9 @@ public class TwoLevelTree {
                 && citysElements[t1].parent == citysElements[t8].parent){
             nonCon4ExchangeInSegment2(t1, t2, t3, t4, t5, t6, t7, t8);
         }else{
-            ArrayList<Parent> smallP = splitToFitNS4Exchange(t1,t2,t3,t4,t5,t6,t7,t8);
+            splitToFitNS4Exchange(t1,t2,t3,t4,t5,t6,t7,t8);
             nonSequ4Exchange2(t1,t2,t3,t4,t5,t6,t7,t8);
-            mergeParents(smallP);
+            rebalance();
         }
     }
 
@@ -251,6 +351,7 @@ public class TwoLevelTree {
             nextPar.nextParent = currPar;
             currPar.isReverse = !currPar.isReverse;
             currPar = nextNextPar.previousParent;
+            ++parentWork;
         }
         currPar.isReverse = !currPar.isReverse;
     }
@@ -327,7 +428,7 @@ public class TwoLevelTree {
         //forward direction
         for (count = 1, currParent = headParent.nextParent; currParent != headParent; ++count) {
             if (currParent.nextParent != headParent
-                    && currParent.ID != currParent.nextParent.ID - 1) {
+                    && currParent.ID >= currParent.nextParent.ID) {
                 System.err.println("Parent ID error");
                 return false;
             }
@@ -399,16 +500,19 @@ public class TwoLevelTree {
         return parent.checkElementRelation();
     }
 
+    /**
+     * small parents wait for a merge, so only the parents that are too small and not waiting are an error
+     */
     private boolean checkBalance() {
-        Parent parent;
-        for (parent = headParent; parent != headParent.previousParent; parent = parent.nextParent) {
-            if (parent.size < lower || parent.size > upper) {
+        Parent parent = headParent;
+        do {
+            if (parent.size < 1 || parent.smallIndex < 0 && parent.size < (int) lower && parentsNum > 1) {
                 System.err.println("checkBalance error 1");
                 return false;
             }
-        }
-
-        return parent.size >= (int) lower && parent.size <= (int) upper;
+            parent = parent.nextParent;
+        } while (parent != headParent);
+        return true;
     }
 
     public boolean checkTree() {
@@ -424,7 +528,7 @@ public class TwoLevelTree {
      * @param a index of a
      * @return index of the successor of a
      */
-    int next(int a) {
+    public int next(int a) {
         return citysElements[a].parent.isReverse ? citysElements[a].previousElement.cityID
                 : citysElements[a].nextElement.cityID;
     }
@@ -435,16 +539,16 @@ public class TwoLevelTree {
      * @param a index of a
      * @return index of the city in front of a
      */
-    int prev(int a) {
+    public int prev(int a) {
         return citysElements[a].parent.isReverse ? citysElements[a].nextElement.cityID
                 : citysElements[a].previousElement.cityID;
     }
 
-    int getHeadCityID() {
+    public int getHeadCityID() {
         return headParent.isReverse ? headParent.endElement.cityID : headParent.beginElement.cityID;
     }
 
-    boolean between(int a, int b, int c) {
+    public boolean between(int a, int b, int c) {
         Element elmA = citysElements[a];
         Element elmB = citysElements[b];
         Element elmC = citysElements[c];
@@ -482,6 +586,12 @@ public class TwoLevelTree {
 
     public int[] getCurrentTour() {
         int[] tour = new int[citysElements.length];
+        snapshot(tour);
+        return tour;
+    }
+
+    @Override
+    public void snapshot(int[] tour) {
         int count = 0;
         Element elm = headParent.isReverse ? headParent.endElement : headParent.beginElement;
 
@@ -489,8 +599,6 @@ public class TwoLevelTree {
             tour[count++] = elm.cityID;
             elm = elm.parent.isReverse ? elm.previousElement : elm.nextElement;
         } while (elm != (headParent.isReverse ? headParent.endElement : headParent.beginElement));
-
-        return tour;
     }
 
     public ArrayList<Integer> getPath(int from, int to){
@@ -513,11 +621,26 @@ public class TwoLevelTree {
      * @param c index
      * @param d index
      */
-    void flip(int a, int b, int c, int d) {
+    public void flip(int a, int b, int c, int d) {
         if (a != next(b) || d != next(c)) {
             throw new Error("Infeasible flip!");
         }
+        ++flips;
+
+        if (!flipWithoutSplit(a, b, c, d)) {
+            splitSegmentToFitFlip(a, b, c, d);
+            flipWithoutSplit(a, b, c, d);
+            rebalance();
+        }
+        if (adaptive && ++adaptFlips == ADAPT_PERIOD) {
+            adaptSegmentSize();
+        }
+    }
 
+    /**
+     * @return false when both a-c and d-b cut segments, nothing is done then
+     */
+    private boolean flipWithoutSplit(int a, int b, int c, int d) {
         //check if d-b and a-c consist of a sequence of consecutive segments
         if (citysElements[a].parent != citysElements[b].parent
                 && citysElements[c].parent != citysElements[d].parent) {
@@ -536,10 +659,40 @@ public class TwoLevelTree {
             flipWithinSegment(d, b);
 
         } else {
-            ArrayList<Parent> smallParents = splitSegmentToFitFlip(a, b, c, d);
-            flip(a, b, c, d);
-            mergeParents(smallParents);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * merge the small parents once they are more than a quarter of the segments
+     * the target size would give
+     */
+    private void rebalance() {
+        if (smallParents.size() > citysElements.length / segmentSize / 4) {
+            mergeSmallParents();
+        }
+    }
+
+    /**
+     * a flip walks O(segment size) elements and O(n / segment size) parents,
+     * move the target size towards the point where both cost the same
+     */
+    private void adaptSegmentSize() {
+        if (elementWork > 2 * parentWork) {
+            setSegmentSize(segmentSize * 3 / 4);
+        } else if (parentWork > 2 * elementWork) {
+            setSegmentSize(segmentSize * 4 / 3 + 1);
+            //the parents now below the lower bound wait for a merge like the ones left by splits
+            Parent parent = headParent;
+            do {
+                if (parent.size < lower) addSmallParent(parent);
+                parent = parent.nextParent;
+            } while (parent != headParent);
         }
+        elementWork = 0;
+        parentWork = 0;
+        adaptFlips = 0;
     }
 
     private boolean liesInOneSegment(int a, int c) {
@@ -555,33 +708,51 @@ public class TwoLevelTree {
         return true;
     }
 
-    boolean hasEdge(int a, int b) {
+    public boolean hasEdge(int a, int b) {
         return next(a) == b || next(b) == a;
     }
 
-    private void mergeParents(ArrayList<Parent> parents) {
-        while (!parents.isEmpty()) {
-            Parent parent = parents.get(parents.size() - 1);
-            parents.remove(parents.size() - 1);
+    private void mergeSmallParents() {
+        while (!smallParents.isEmpty()) {
+            Parent parent = smallParents.get(smallParents.size() - 1);
+            removeSmallParent(parent);
 
-            if (parent.size > lower) continue;
+            if (parent.size > lower || parentsNum == 1) continue;
 
             if (parent.previousParent.size < parent.nextParent.size) {
                 mergeParBToParA(parent.previousParent, parent);
             } else {
-                Parent nextPar = parent.nextParent;
-                mergeParBToParA(parent, nextPar);
-                parents.remove(nextPar);
+                //releasing nextPar drops it from the list
+                mergeParBToParA(parent, parent.nextParent);
                 if (parent.size < lower) {
-                    parents.add(parent);
+                    addSmallParent(parent);
                 }
             }
         }
+    }
 
-        reSortAllParentID();
+    private void addSmallParent(Parent parent) {
+        if (parent.smallIndex < 0) {
+            parent.smallIndex = smallParents.size();
+            smallParents.add(parent);
+        }
+    }
+
+    /**
+     * O(1): the last small parent takes the place of the removed one
+     */
+    private void removeSmallParent(Parent parent) {
+        Parent last = smallParents.remove(smallParents.size() - 1);
+        if (last != parent) {
+            smallParents.set(parent.smallIndex, last);
+            last.smallIndex = parent.smallIndex;
+        }
+        parent.smallIndex = -1;
     }
 
     private void mergeParBToParA(Parent A, Parent B) {
+        ++merges;
+        elementWork += A.size + B.size;
         Element currElem = B.beginElement;
         for (; ; ) {
             currElem.parent = A;
@@ -625,16 +796,45 @@ public class TwoLevelTree {
         B.nextParent.previousParent = A;
         //B.isAbandoned = true;
         if (headParent == B) {
+            //A was the last parent, it takes the smallest id with the head
             headParent = A;
+            A.ID = B.ID;
         }
+        --parentsNum;
+        releaseParent(B);
         resortElemID(A);
         if (A.size > upper) {
             splitByHalf(A);
         }
     }
 
+    private Parent newParent() {
+        return freeCount > 0 ? freeParents[--freeCount] : new Parent();
+    }
+
+    private Parent newEmptyParent() {
+        Parent parent = newParent();
+        parent.size = 0;
+        parent.isReverse = false;
+        return parent;
+    }
+
+    private void releaseParent(Parent parent) {
+        if (freeCount == freeParents.length) {
+            freeParents = Arrays.copyOf(freeParents, 2 * freeCount);
+        }
+        if (parent.smallIndex >= 0) {
+            removeSmallParent(parent);
+        }
+        parent.previousParent = null;
+        parent.nextParent = null;
+        parent.beginElement = null;
+        parent.endElement = null;
+        freeParents[freeCount++] = parent;
+    }
+
     private void splitByHalf(Parent parent) {
-        Parent newPar = new Parent();
+        Parent newPar = newParent();
         Element cutElem = parent.isReverse ? parent.endElement : parent.beginElement;
         int count = 1;
 
@@ -670,6 +870,8 @@ public class TwoLevelTree {
         }
         currElem.parent = newPar;
         ++parentsNum;
+        elementWork += newPar.size;
+        assignInsertedID(newPar);
     }
 
     private void resortElemID(Parent parent) {
@@ -698,45 +900,56 @@ public class TwoLevelTree {
         ElemB.nextElement = currElem;
     }
 
-    private ArrayList<Parent> splitSegmentToFitFlip(int a, int b, int c, int d) {
+    private void splitSegmentToFitFlip(int a, int b, int c, int d) {
         Parent aPar = citysElements[a].parent;
         Parent bPar = citysElements[b].parent;
         Parent cPar = citysElements[c].parent;
         Parent dPar = citysElements[d].parent;
 
-        ArrayList<Parent> smallParents = new ArrayList<>();
-
         //split b-a
         if (aPar == bPar) {
-            splitSegment(b, a, smallParents);
+            splitSegment(b, a);
         }
 
         //split c-d
         if (cPar == dPar) {
-            splitSegment(c, d, smallParents);
+            splitSegment(c, d);
         }
-
-        reSortAllParentID();
-        return smallParents;
     }
 
     private void reSortAllParentID() {
+        ++renumbers;
         Parent currPar = headParent;
         int count;
         for (count = 0;
              currPar.nextParent != headParent;
              ++count, currPar = currPar.nextParent) {
-            currPar.ID = count;
+            currPar.ID = count * ID_GAP;
         }
 
-        currPar.ID = count;
+        currPar.ID = count * ID_GAP;
         parentsNum = count + 1;
+        parentWork += parentsNum;
+    }
+
+    /**
+     * give parent, just linked in the ring, an id between those of its neighbours,
+     * all the parents are renumbered when there is no room left
+     */
+    private void assignInsertedID(Parent parent) {
+        long previousID = parent.previousParent.ID;
+        long nextID = parent.nextParent == headParent ? previousID + 2L * ID_GAP : parent.nextParent.ID;
+        if (nextID - previousID > 1 && nextID < ID_LIMIT) {
+            parent.ID = (int) ((previousID + nextID) / 2);
+        } else {
+            reSortAllParentID();
+        }
     }
 
-    private void splitSegment(int b, int a, ArrayList<Parent> smallParents) {
+    private void splitSegment(int b, int a) {
 
         Parent oriPar = citysElements[b].parent;
-        Parent newPar = new Parent();
+        Parent newPar = newParent();
 
         newPar.size = oriPar.isReverse ?
                 citysElements[a].ID - oriPar.beginElement.ID + 1 :
@@ -770,19 +983,28 @@ public class TwoLevelTree {
             currElem = currElem.nextElement;
         }
         newPar.endElement.parent = newPar;
+        ++parentsNum;
+        ++splits;
+        elementWork += newPar.size;
+        assignInsertedID(newPar);
 
-        if (oriPar.size < lower && !smallParents.contains(oriPar)) smallParents.add(oriPar);
-        if (newPar.size < lower && !smallParents.contains(newPar)) smallParents.add(newPar);
+        if (oriPar.size < lower) addSmallParent(oriPar);
+        if (newPar.size < lower) addSmallParent(newPar);
     }
 
+    /**
+     * compare the spans of the parent ids, which follow the number of parents
+     * up to the gaps left by the splits
+     */
     private boolean ac_IsShorterThan_bd(int a, int b, int c, int d) {
-        int aPID = citysElements[a].parent.ID;
-        int bPID = citysElements[b].parent.ID;
-        int cPID = citysElements[c].parent.ID;
-        int dPID = citysElements[d].parent.ID;
-
-        return aPID <= cPID ? cPID - aPID + 1 <= parentsNum / 2
-                : bPID - dPID + 1 > parentsNum / 2;
+        long aPID = citysElements[a].parent.ID;
+        long bPID = citysElements[b].parent.ID;
+        long cPID = citysElements[c].parent.ID;
+        long dPID = citysElements[d].parent.ID;
+        long span = (long) headParent.previousParent.ID - headParent.ID;
+
+        return aPID <= cPID ? 2 * (cPID - aPID) <= span
+                : 2 * (bPID - dPID) > span;
     }
 
     private void flipSegments(Parent aParent, Parent cParent) {
@@ -833,19 +1055,25 @@ public class TwoLevelTree {
         }
 
         reSortParentID(aParent, cParent);
+        //the ids move down when the reversed parents pass over the head
+        if (headParent.ID < -ID_LIMIT) {
+            reSortAllParentID();
+        }
     }
 
+    /**
+     * renumber the parents from cParent to aParent, just reversed, keeping the head at the smallest id
+     */
     private void reSortParentID(Parent aParent, Parent cParent) {
 
         if (aParent == cParent) return;
-        Parent dParent = aParent.nextParent;
-        Parent bParent = cParent.previousParent;
 
-        if (dParent.ID < bParent.ID && dParent.ID > headParent.ID) {
-            Parent currPar = dParent;
+        if (aParent.ID > cParent.ID) {
+            //the reversed parents held the head, they go below the id of the parent following them
+            Parent currPar = aParent;
             do {
-                currPar = currPar.previousParent;
                 currPar.ID = currPar.nextParent.ID - 1;
+                currPar = currPar.previousParent;
             } while (currPar != cParent);
             currPar.ID = currPar.nextParent.ID - 1;
             headParent = currPar;
@@ -856,11 +1084,15 @@ public class TwoLevelTree {
                 currPar = currPar.nextParent;
                 currPar.ID = currPar.previousParent.ID + 1;
             } while (currPar != aParent);
+            if (headParent == aParent) {
+                headParent = cParent;
+            }
         }
     }
 
     private void flipWithinSegment(int a, int c) {
         Parent currParent = citysElements[a].parent;
+        elementWork += Math.abs(citysElements[c].ID - citysElements[a].ID) + 1;
         Element currElem;
         Element preAElem = currParent.isReverse ?
                 citysElements[a].nextElement : citysElements[a].previousElement;
@@ -920,6 +1152,8 @@ public class TwoLevelTree {
         int ID;
         int size = 0;
         boolean isReverse = false;
+        //position in smallParents, -1 when not listed
+        int smallIndex = -1;
         Parent previousParent;
         Parent nextParent;
         Element beginElement = null;
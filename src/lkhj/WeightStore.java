@@ -0,0 +1,166 @@
+package lkhj;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Flat storage of edge weights addressed by a long index.
+ * The heap stores keep the weights in one primitive array,
+ * the buffer store keeps them off-heap in chunks of direct or mapped buffers.
+ */
+abstract class WeightStore {
+
+    abstract double get(long index);
+
+    abstract void set(long index, double value);
+
+    static WeightStore onHeap(long size, PackedTriangularMatrix.WeightType type) {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new Error("Too many weights for an on-heap store: " + size + ", use an off-heap storage");
+        }
+        switch (type) {
+            case INT:
+                return new IntArrayStore((int) size);
+            case FLOAT:
+                return new FloatArrayStore((int) size);
+            default:
+                return new DoubleArrayStore((int) size);
+        }
+    }
+
+    static WeightStore direct(long size, PackedTriangularMatrix.WeightType type) throws IOException {
+        return new BufferStore(size, type, null);
+    }
+
+    static WeightStore mapped(long size, PackedTriangularMatrix.WeightType type, String file) throws IOException {
+        return new BufferStore(size, type, file);
+    }
+
+    static private class IntArrayStore extends WeightStore {
+        private final int[] weights;
+
+        IntArrayStore(int size) {
+            weights = new int[size];
+        }
+
+        @Override
+        double get(long index) {
+            return weights[(int) index];
+        }
+
+        @Override
+        void set(long index, double value) {
+            weights[(int) index] = (int) value;
+        }
+    }
+
+    static private class FloatArrayStore extends WeightStore {
+        private final float[] weights;
+
+        FloatArrayStore(int size) {
+            weights = new float[size];
+        }
+
+        @Override
+        double get(long index) {
+            return weights[(int) index];
+        }
+
+        @Override
+        void set(long index, double value) {
+            weights[(int) index] = (float) value;
+        }
+    }
+
+    static private class DoubleArrayStore extends WeightStore {
+        private final double[] weights;
+
+        DoubleArrayStore(int size) {
+            weights = new double[size];
+        }
+
+        @Override
+        double get(long index) {
+            return weights[(int) index];
+        }
+
+        @Override
+        void set(long index, double value) {
+            weights[(int) index] = value;
+        }
+    }
+
+    /**
+     * Off-heap store, a single ByteBuffer is limited to 2GB
+     * so the weights are spread over chunks of 2^CHUNK_SHIFT entries.
+     */
+    static private class BufferStore extends WeightStore {
+        static private final int CHUNK_SHIFT = 27;
+        static private final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+        private final ByteBuffer[] chunks;
+        private final PackedTriangularMatrix.WeightType type;
+        private final int byteShift;
+
+        BufferStore(long size, PackedTriangularMatrix.WeightType type, String file) throws IOException {
+            this.type = type;
+            byteShift = type == PackedTriangularMatrix.WeightType.DOUBLE ? 3 : 2;
+            int chunkNum = (int) ((size + CHUNK_MASK) >>> CHUNK_SHIFT);
+            chunks = new ByteBuffer[Math.max(chunkNum, 1)];
+
+            if (file == null) {
+                for (int i = 0; i < chunks.length; ++i) {
+                    chunks[i] = ByteBuffer.allocateDirect((int) (chunkSize(size, i) << byteShift))
+                            .order(ByteOrder.nativeOrder());
+                }
+            } else {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                     FileChannel channel = raf.getChannel()) {
+                    for (int i = 0; i < chunks.length; ++i) {
+                        chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                ((long) i << CHUNK_SHIFT) << byteShift,
+                                chunkSize(size, i) << byteShift)
+                                .order(ByteOrder.nativeOrder());
+                    }
+                }
+            }
+        }
+
+        static private long chunkSize(long size, int chunk) {
+            return Math.min(size - ((long) chunk << CHUNK_SHIFT), 1L << CHUNK_SHIFT);
+        }
+
+        @Override
+        double get(long index) {
+            ByteBuffer chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+            int offset = (int) (index & CHUNK_MASK) << byteShift;
+            switch (type) {
+                case INT:
+                    return chunk.getInt(offset);
+                case FLOAT:
+                    return chunk.getFloat(offset);
+                default:
+                    return chunk.getDouble(offset);
+            }
+        }
+
+        @Override
+        void set(long index, double value) {
+            ByteBuffer chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+            int offset = (int) (index & CHUNK_MASK) << byteShift;
+            switch (type) {
+                case INT:
+                    chunk.putInt(offset, (int) value);
+                    break;
+                case FLOAT:
+                    chunk.putFloat(offset, (float) value);
+                    break;
+                default:
+                    chunk.putDouble(offset, value);
+            }
+        }
+    }
+}